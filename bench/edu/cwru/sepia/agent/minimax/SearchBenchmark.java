@@ -0,0 +1,243 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
+
+/**
+ * JMH benchmarks of the search and the pieces it is built from on the
+ * starting positions of the maps in data/, as the baseline to compare
+ * performance changes against:
+ *
+ * search: MinimaxAlphaBeta.alphaBetaSearch searching the starting position
+ * to depth plies with the given number of threads. Each configuration uses
+ * one agent for all of its searches, so its search threads are only started
+ * once, and the move ordering's history carries over from search to search
+ * as it does from turn to turn in a game. The agent's terminalStep() shuts
+ * its threads down when the configuration is done.
+ * getChildren: generating every child of the starting position with the
+ * footmen or the archers to move
+ * getUtility: computing the utilities of every grandchild of the starting
+ * position that has not computed its utility yet
+ * findPath: an A* path from each footman to each archer
+ *
+ * Every result is handed to a Blackhole so the JIT cannot drop the work.
+ * Run with -prof gc for the bytes allocated per operation, which the build
+ * does by default.
+ *
+ * The agent options of search are a space separated list of key=value
+ * arguments, for example -p options="ttSize=0 search=pvs". The transposition
+ * table is off by default so that each search does the work of a first
+ * visit to the position.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+	/**
+	 * The starting position of a map, shared by all benchmarks of the map
+	 */
+	@State(Scope.Benchmark)
+	public static class Position {
+
+		@Param({ "2fv2a", "2fv1a_Obstacles", "2fv2a_Obstacles" })
+		public String map;
+
+		edu.cwru.sepia.environment.model.state.State.StateView view;
+
+		@Setup(Level.Trial)
+		public void loadMap() throws JAXBException {
+			view = EpisodeRunner.loadMap("data/Game" + map + ".xml").createState().getView(0);
+		}
+	}
+
+	/**
+	 * One search configuration and the agent that searches it
+	 */
+	@State(Scope.Benchmark)
+	public static class Search {
+
+		@Param({ "2", "4", "6" })
+		public int depth;
+
+		@Param({ "1", "4" })
+		public int threads;
+
+		@Param("ttSize=0")
+		public String options;
+
+		MinimaxAlphaBeta agent;
+		edu.cwru.sepia.environment.model.state.State.StateView view;
+		final GameStateChild alpha = new GameStateChild(null, new GameState(Integer.MIN_VALUE));
+		final GameStateChild beta = new GameStateChild(null, new GameState(Integer.MAX_VALUE));
+
+		/**
+		 * Creates the agent, after checking that calling alphaBetaSearch
+		 * directly, on the new agent and again once it has played a turn,
+		 * searches and returns a child
+		 * @throws IllegalStateException If either call returns no joint action
+		 */
+		@Setup(Level.Trial)
+		public void createAgent(Position position) {
+			List<String> args = new ArrayList<>();
+			args.add(String.valueOf(depth));
+			args.add("threads=" + threads);
+			args.addAll(Arrays.asList(options.trim().split("\\s+")));
+			args.remove("");
+			view = position.view;
+			agent = new MinimaxAlphaBeta(0, args.toArray(new String[0]));
+			for (int call = 0; call < 2; call++) {
+				if (agent.alphaBetaSearch(root(view), 0, true, alpha, beta).action == null) {
+					throw new IllegalStateException("alphaBetaSearch returned no move with " + args
+							+ (call == 0 ? " on a new agent" : " after a turn"));
+				}
+				agent.middleStep(view, null);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void finishEpisode() {
+			agent.terminalStep(view, null);
+		}
+	}
+
+	/**
+	 * A fresh root for every search, since a search leaves its root's
+	 * children and utility computed. A search takes far longer than setting
+	 * up one invocation, so the per invocation setup does not skew it.
+	 */
+	@State(Scope.Thread)
+	public static class Root {
+
+		GameStateChild root;
+
+		@Setup(Level.Invocation)
+		public void createRoot(Position position) {
+			root = root(position.view);
+		}
+	}
+
+	/**
+	 * The starting position with one side to move
+	 */
+	@State(Scope.Benchmark)
+	public static class Children {
+
+		@Param({ "max", "min" })
+		public String side;
+
+		GameState root;
+
+		@Setup(Level.Trial)
+		public void createRoot(Position position) {
+			root = new GameState(position.view);
+			root.setIsMax(side.equals("max"));
+		}
+	}
+
+	/**
+	 * Fresh copies of the starting position's grandchildren, so none of them
+	 * has computed its utility yet
+	 */
+	@State(Scope.Thread)
+	public static class Grandchildren {
+
+		final List<GameState> positions = new ArrayList<>();
+		GameState[] fresh;
+
+		@Setup(Level.Trial)
+		public void createPositions(Position position) {
+			GameState root = new GameState(position.view);
+			for (GameStateChild child : root.getChildren()) {
+				child.state.setIsMax(false);
+				for (GameStateChild grandchild : child.state.getChildren()) {
+					positions.add(grandchild.state);
+				}
+			}
+			fresh = new GameState[positions.size()];
+		}
+
+		@Setup(Level.Invocation)
+		public void copyPositions() {
+			for (int i = 0; i < fresh.length; i++) {
+				fresh[i] = new GameState(positions.get(i));
+			}
+		}
+	}
+
+	/**
+	 * The A* agent and obstacles of the starting position
+	 */
+	@State(Scope.Thread)
+	public static class Paths {
+
+		GameState root;
+		List<ResourceView> obstacles;
+		AstarAgent astar;
+
+		@Setup(Level.Trial)
+		public void createAgent(Position position) {
+			root = new GameState(position.view);
+			obstacles = new ArrayList<>(position.view.getAllResourceNodes());
+			astar = new AstarAgent(root.getXExtent(), root.getYExtent());
+		}
+	}
+
+	@Benchmark
+	public void search(Search search, Root root, Blackhole blackhole) {
+		blackhole.consume(search.agent.alphaBetaSearch(root.root, 0, true, search.alpha, search.beta));
+	}
+
+	@Benchmark
+	public void getChildren(Children children, Blackhole blackhole) {
+		blackhole.consume(children.root.getChildren());
+	}
+
+	@Benchmark
+	public void getUtility(Grandchildren grandchildren, Blackhole blackhole) {
+		for (GameState state : grandchildren.fresh) {
+			blackhole.consume(state.getUtility());
+		}
+	}
+
+	@Benchmark
+	public void findPath(Paths paths, Blackhole blackhole) {
+		for (GameUnit footman : paths.root.footmen) {
+			for (GameUnit archer : paths.root.archers) {
+				blackhole.consume(paths.astar.findPath(paths.obstacles, footman, archer));
+			}
+		}
+	}
+
+	private static GameStateChild root(edu.cwru.sepia.environment.model.state.State.StateView view) {
+		try {
+			return new GameStateChild(view);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
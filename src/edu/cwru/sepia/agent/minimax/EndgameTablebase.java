@@ -0,0 +1,358 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.xml.bind.JAXBException;
+
+/**
+ * Exact results of every position with one footman against one archer on
+ * an open map, solved ahead of time by retrograde analysis and looked up
+ * during search instead of searching or evaluating the position.
+ *
+ * Positions are solved under the search's own rules: the two sides take
+ * turns, a unit either moves one square north, east, south or west onto an
+ * empty square or attacks an enemy within its range, and a unit dies once it
+ * has taken as many hits as its HP allows. A unit's HP only enters through
+ * the number of hits it can still take, so the table covers every HP up to
+ * the HP the units start the map with.
+ *
+ * Each position takes one byte: 0 if neither side can force a kill, n if the
+ * side to move kills the enemy within n plies against any defence, and -n if
+ * the side to move is killed within n plies whatever it does. The table is
+ * generated once per map with main() and memory mapped when loaded, so only
+ * the pages that are probed are ever read.
+ *
+ * Positions with two footmen would need a table some ten thousand times
+ * larger, so those are left to the search.
+ */
+public final class EndgameTablebase {
+
+	//Added to and subtracted from the plies to a kill to score a probed
+	//position, far outside the range of getUtility()
+	public static final int WIN_SCORE = 1000000;
+	//Returned by probe() when the table has no result for a state
+	public static final int NO_RESULT = Integer.MIN_VALUE;
+
+	private static final int MAGIC = 0x53454542;
+	private static final int HEADER_BYTES = 32;
+	private static final int FOOTMEN_TO_MOVE = 0;
+	private static final int ARCHER_TO_MOVE = 1;
+	private static final int[] DX = { 0, 1, 0, -1 };
+	private static final int[] DY = { -1, 0, 1, 0 };
+
+	private final int xExtent;
+	private final int yExtent;
+	private final int cells;
+	//Most hits the footman and the archer can take
+	private final int footmanHits;
+	private final int archerHits;
+	private final ByteBuffer table;
+
+	private EndgameTablebase(int xExtent, int yExtent, int footmanHits, int archerHits, ByteBuffer table) {
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.cells = xExtent * yExtent;
+		this.footmanHits = footmanHits;
+		this.archerHits = archerHits;
+		this.table = table;
+	}
+
+	/**
+	 * Memory maps a table written by main()
+	 * @param file The table file
+	 * @return The mapped table
+	 * @throws IOException If the file cannot be read, is not a table or was
+	 * generated for other unit ranges than the search uses
+	 */
+	public static EndgameTablebase load(File file) throws IOException {
+		try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+			ByteBuffer table = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+			if (table.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not an endgame tablebase");
+			}
+			if (table.getInt(20) != GameState.FOOTMAN_RANGE || table.getInt(24) != GameState.ARCHER_RANGE) {
+				throw new IOException(file + " was generated for different attack ranges");
+			}
+			EndgameTablebase tablebase = new EndgameTablebase(table.getInt(4), table.getInt(8),
+					table.getInt(12), table.getInt(16), table);
+			if (input.length() != HEADER_BYTES + tablebase.size()) {
+				throw new IOException(file + " is truncated");
+			}
+			return tablebase;
+		}
+	}
+
+	/**
+	 * Looks up the exact score of a state. Dead units, whose HP has dropped
+	 * to 0 or below during search, are ignored.
+	 * @param state The state to look up
+	 * @param footmenToMove True if the footmen are to move in the state
+	 * @return WIN_SCORE less the plies until the archer dies if the footmen
+	 * can force it, -WIN_SCORE plus the plies until the footman dies if the
+	 * archer can, or NO_RESULT if the state is not in the table or neither
+	 * side can force a kill
+	 */
+	public int probe(GameState state, boolean footmenToMove) {
+		if (state.hasObstacles() || state.getXExtent() != xExtent || state.getYExtent() != yExtent) {
+			return NO_RESULT;
+		}
+		GameUnit footman = onlyLivingUnit(state.footmen);
+		GameUnit archer = onlyLivingUnit(state.archers);
+		if (footman == null || archer == null || archer.getDamage() <= 0 || footman.getDamage() <= 0) {
+			return NO_RESULT;
+		}
+		int footmanLeft = hitsToKill(footman.getHP(), archer.getDamage());
+		int archerLeft = hitsToKill(archer.getHP(), footman.getDamage());
+		if (footmanLeft > footmanHits || archerLeft > archerHits) {
+			return NO_RESULT;
+		}
+		int plies = table.get(HEADER_BYTES + index(footmenToMove ? FOOTMEN_TO_MOVE : ARCHER_TO_MOVE,
+				archerLeft, footmanLeft, cell(footman.getX(), footman.getY()), cell(archer.getX(), archer.getY())));
+		if (plies == 0) {
+			return NO_RESULT;
+		}
+		if (!footmenToMove) {
+			plies = -plies;
+		}
+		return plies > 0 ? WIN_SCORE - plies : -WIN_SCORE - plies;
+	}
+
+	/**
+	 * Generates the table for the units and size of a map without obstacles.
+	 *
+	 * Usage: EndgameTablebase mapFile tableFile
+	 */
+	public static void main(String[] args) throws IOException, JAXBException {
+		if (args.length != 2) {
+			System.err.println("Usage: EndgameTablebase data/Game2fv2a.xml tablebase.bin");
+			System.exit(1);
+		}
+		GameState start = new GameState(EpisodeRunner.loadMap(args[0]).createState().getView(0));
+		if (start.hasObstacles()) {
+			System.err.println("The tablebase only covers maps without obstacles");
+			System.exit(1);
+		}
+		GameUnit footman = start.footmen.get(0);
+		GameUnit archer = start.archers.get(0);
+		EndgameTablebase tablebase = new EndgameTablebase(start.getXExtent(), start.getYExtent(),
+				hitsToKill(footman.getHP(), archer.getDamage()), hitsToKill(archer.getHP(), footman.getDamage()), null);
+
+		long startTime = System.currentTimeMillis();
+		byte[] results = tablebase.solve();
+		int won = 0;
+		int lost = 0;
+		int longest = 0;
+		for (byte result : results) {
+			won += result > 0 ? 1 : 0;
+			lost += result < 0 ? 1 : 0;
+			longest = Math.max(longest, Math.abs(result));
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[1])))) {
+			out.writeInt(MAGIC);
+			out.writeInt(tablebase.xExtent);
+			out.writeInt(tablebase.yExtent);
+			out.writeInt(tablebase.footmanHits);
+			out.writeInt(tablebase.archerHits);
+			out.writeInt(GameState.FOOTMAN_RANGE);
+			out.writeInt(GameState.ARCHER_RANGE);
+			out.writeInt(0);
+			out.write(results);
+		}
+		System.out.printf("Solved %d positions in %.1fs: %d won and %d lost by the side to move, longest %d plies%n",
+				results.length, (System.currentTimeMillis() - startTime) / 1000.0, won, lost, longest);
+	}
+
+	/**
+	 * Solves every position by retrograde analysis. Positions where the side
+	 * to move can kill at once are won in 1 ply. From then on, ply by ply,
+	 * every position one move before a lost position is won, and a position
+	 * is lost once every move from it leads to a won position, which is
+	 * tracked by counting down the moves of each position not yet solved.
+	 * This finds the fastest kill for the winner and the slowest for the
+	 * loser.
+	 *
+	 * @return The result of each position by index
+	 */
+	private byte[] solve() {
+		byte[] results = new byte[size()];
+		byte[] movesLeft = new byte[size()];
+		IntList solved = new IntList();
+		for (int side = 0; side < 2; side++) {
+			int range = side == FOOTMEN_TO_MOVE ? GameState.FOOTMAN_RANGE : GameState.ARCHER_RANGE;
+			for (int archer = 1; archer <= archerHits; archer++) {
+				for (int footman = 1; footman <= footmanHits; footman++) {
+					int enemyLeft = side == FOOTMEN_TO_MOVE ? archer : footman;
+					for (int footmanCell = 0; footmanCell < cells; footmanCell++) {
+						for (int archerCell = 0; archerCell < cells; archerCell++) {
+							if (footmanCell == archerCell) {
+								continue;
+							}
+							int index = index(side, archer, footman, footmanCell, archerCell);
+							int mover = side == FOOTMEN_TO_MOVE ? footmanCell : archerCell;
+							int enemy = side == FOOTMEN_TO_MOVE ? archerCell : footmanCell;
+							boolean canAttack = distance(mover, enemy) <= range;
+							if (canAttack && enemyLeft == 1) {
+								results[index] = 1;
+								solved.add(index);
+							}
+							movesLeft[index] = (byte) (moves(mover, enemy) + (canAttack ? 1 : 0));
+						}
+					}
+				}
+			}
+		}
+
+		IntList next = new IntList();
+		for (int plies = 1; solved.size() > 0; plies++) {
+			if (plies >= Byte.MAX_VALUE) {
+				throw new IllegalStateException("A position takes more than " + Byte.MAX_VALUE + " plies to solve");
+			}
+			for (int i = 0; i < solved.size(); i++) {
+				int index = solved.get(i);
+				boolean lost = results[index] < 0;
+				int archerCell = index % cells;
+				int rest = index / cells;
+				int footmanCell = rest % cells;
+				rest /= cells;
+				int footman = rest % footmanHits + 1;
+				rest /= footmanHits;
+				int archer = rest % archerHits + 1;
+				int side = rest / archerHits;
+
+				//The previous position had the other side to move, which either
+				//moved to where it stands now or attacked the side now to move
+				int previousSide = 1 - side;
+				int mover = previousSide == FOOTMEN_TO_MOVE ? footmanCell : archerCell;
+				int enemy = previousSide == FOOTMEN_TO_MOVE ? archerCell : footmanCell;
+				int x = mover % xExtent;
+				int y = mover / xExtent;
+				for (int direction = 0; direction < DX.length; direction++) {
+					int fromX = x - DX[direction];
+					int fromY = y - DY[direction];
+					if (fromX < 0 || fromX >= xExtent || fromY < 0 || fromY >= yExtent || cell(fromX, fromY) == enemy) {
+						continue;
+					}
+					int from = cell(fromX, fromY);
+					int previous = previousSide == FOOTMEN_TO_MOVE
+							? index(previousSide, archer, footman, from, archerCell)
+							: index(previousSide, archer, footman, footmanCell, from);
+					solvePrevious(results, movesLeft, next, previous, lost, plies);
+				}
+				int range = previousSide == FOOTMEN_TO_MOVE ? GameState.FOOTMAN_RANGE : GameState.ARCHER_RANGE;
+				if (distance(mover, enemy) <= range) {
+					if (previousSide == FOOTMEN_TO_MOVE && archer < archerHits) {
+						solvePrevious(results, movesLeft, next, index(previousSide, archer + 1, footman, footmanCell, archerCell), lost, plies);
+					} else if (previousSide == ARCHER_TO_MOVE && footman < footmanHits) {
+						solvePrevious(results, movesLeft, next, index(previousSide, archer, footman + 1, footmanCell, archerCell), lost, plies);
+					}
+				}
+			}
+			IntList swap = solved;
+			solved = next;
+			next = swap;
+			next.clear();
+		}
+		return results;
+	}
+
+	/**
+	 * Updates a position one move before a position solved at the given ply
+	 */
+	private static void solvePrevious(byte[] results, byte[] movesLeft, IntList next, int previous, boolean reachedLost, int plies) {
+		if (results[previous] != 0) {
+			return;
+		}
+		if (reachedLost) {
+			results[previous] = (byte) (plies + 1);
+			next.add(previous);
+		} else if (--movesLeft[previous] == 0) {
+			results[previous] = (byte) -(plies + 1);
+			next.add(previous);
+		}
+	}
+
+	private int moves(int mover, int enemy) {
+		int x = mover % xExtent;
+		int y = mover / xExtent;
+		int moves = 0;
+		for (int direction = 0; direction < DX.length; direction++) {
+			int toX = x + DX[direction];
+			int toY = y + DY[direction];
+			if (toX >= 0 && toX < xExtent && toY >= 0 && toY < yExtent && cell(toX, toY) != enemy) {
+				moves++;
+			}
+		}
+		return moves;
+	}
+
+	private int distance(int from, int to) {
+		return Math.abs(from % xExtent - to % xExtent) + Math.abs(from / xExtent - to / xExtent);
+	}
+
+	private int index(int side, int archerLeft, int footmanLeft, int footmanCell, int archerCell) {
+		return (((side * archerHits + archerLeft - 1) * footmanHits + footmanLeft - 1) * cells + footmanCell) * cells + archerCell;
+	}
+
+	private int size() {
+		return 2 * archerHits * footmanHits * cells * cells;
+	}
+
+	private int cell(int x, int y) {
+		return y * xExtent + x;
+	}
+
+	private static int hitsToKill(int hp, int damage) {
+		return (hp + damage - 1) / damage;
+	}
+
+	/**
+	 * @return The one unit of the list with HP left, or null if there is not exactly one
+	 */
+	private static GameUnit onlyLivingUnit(Iterable<GameUnit> units) {
+		GameUnit living = null;
+		for (GameUnit unit : units) {
+			if (unit.getHP() > 0) {
+				if (living != null) {
+					return null;
+				}
+				living = unit;
+			}
+		}
+		return living;
+	}
+
+	/**
+	 * A growable list of ints, the positions solved in one ply can number in
+	 * the millions
+	 */
+	private static final class IntList {
+		private int[] values = new int[1024];
+		private int size;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = java.util.Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		int get(int i) {
+			return values[i];
+		}
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.ConfigurationValues;
+
+/**
+ * Plays many episodes of MinimaxAlphaBeta or MonteCarloTreeSearch against
+ * ArcherAgent without the visual agent, several at once. Every episode gets
+ * its own agents, model and environment, so episodes share nothing and can
+ * run on separate threads. The model parameters are the ones in the
+ * GameConfig files.
+ *
+ * One CSV line is written per episode as it finishes:
+ *
+ * episode,map,seed,winner,steps,turns,meanTurnMillis,maxTurnMillis,turnMillis
+ *
+ * where winner is footmen, archers or none if the step limit ran out, turns
+ * counts the footmen's turns, and turnMillis lists how long each of them
+ * took, separated by spaces. A summary follows the last episode.
+ *
+ * Arguments are key=value pairs:
+ *
+ * maps=2fv2a,2fv1a_Obstacles,2fv2a_Obstacles: the maps in data/ to play,
+ * taken in turn by consecutive episodes
+ * episodes=100: the number of episodes to play
+ * threads=n: the number of episodes played at once, one per processor by default
+ * agent=alphabeta|mcts: play the footmen with MinimaxAlphaBeta (the
+ * default) or MonteCarloTreeSearch
+ * plies=4: the first argument of the agent, the milliseconds per turn for mcts
+ * seed=0: the seed of the first episode, each later episode adds one
+ * out=file: write the CSV to a file instead of standard out
+ *
+ * Any other argument is passed on to the agent.
+ */
+public class EpisodeRunner {
+
+	private static final int FOOTMEN = 0;
+	private static final int ARCHERS = 1;
+	//Step limit of an episode, the TimeLimit of the GameConfig files
+	private static final int STEP_LIMIT = 100000;
+	private static final String FOOTMEN_WIN = "footmen";
+	private static final String ARCHERS_WIN = "archers";
+	private static final String NO_WINNER = "none";
+
+	private final String[] maps;
+	private final Map<String, StateCreator> creators = new HashMap<>();
+	private final String[] agentArgs;
+	private final boolean monteCarlo;
+	private final int seed;
+
+	/**
+	 * @param maps The names of the maps to play, such as 2fv2a
+	 * @param agentArgs The arguments of every footmen agent
+	 * @param monteCarlo True to play the footmen with MonteCarloTreeSearch instead of MinimaxAlphaBeta
+	 * @param seed The seed of the first episode
+	 * @throws JAXBException If a map cannot be loaded
+	 */
+	public EpisodeRunner(String[] maps, String[] agentArgs, boolean monteCarlo, int seed) throws JAXBException {
+		this.maps = maps;
+		this.agentArgs = agentArgs;
+		this.monteCarlo = monteCarlo;
+		this.seed = seed;
+		for (String map : maps) {
+			creators.put(map, loadMap("data/Game" + map + ".xml"));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		List<String> agentArgs = new ArrayList<>();
+		agentArgs.add("4");
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String key = equals < 0 ? arg : arg.substring(0, equals);
+			if (key.equals("maps") || key.equals("episodes") || key.equals("threads") || key.equals("seed")
+					|| key.equals("out") || key.equals("agent")) {
+				options.put(key, arg.substring(equals + 1));
+			} else if (key.equals("plies")) {
+				agentArgs.set(0, arg.substring(equals + 1));
+			} else {
+				agentArgs.add(arg);
+			}
+		}
+		String[] maps = get(options, "maps", "2fv2a,2fv1a_Obstacles,2fv2a_Obstacles").split(",");
+		int episodes = Integer.parseInt(get(options, "episodes", "100"));
+		int threads = Integer.parseInt(get(options, "threads",
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		int seed = Integer.parseInt(get(options, "seed", "0"));
+		String agent = get(options, "agent", "alphabeta");
+		if (!agent.equals("alphabeta") && !agent.equals("mcts")) {
+			System.err.println("Unknown agent " + agent + ", expected alphabeta or mcts");
+			System.exit(1);
+		}
+		PrintStream out = System.out;
+		if (options.containsKey("out")) {
+			out = new PrintStream(options.get("out"));
+		}
+
+		EpisodeRunner runner = new EpisodeRunner(maps, agentArgs.toArray(new String[0]), agent.equals("mcts"), seed);
+		runner.runAll(episodes, threads, out);
+		if (out != System.out) {
+			out.close();
+		}
+		//Every environment leaves a thread waiting on each of its agents, which
+		//would keep the JVM alive, so exit the way SEPIA's own runners do
+		System.exit(0);
+	}
+
+	/**
+	 * Plays episodes on a pool of threads, writing each result as it finishes
+	 * and a summary at the end
+	 * @param episodes The number of episodes to play
+	 * @param threads The number of episodes to play at once
+	 * @param out Where to write the results
+	 */
+	public void runAll(int episodes, int threads, final PrintStream out) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<EpisodeResult>> results = new ArrayList<>();
+		long start = System.nanoTime();
+		out.println("episode,map,seed,winner,steps,turns,meanTurnMillis,maxTurnMillis,turnMillis");
+		for (int i = 0; i < episodes; i++) {
+			final int episode = i;
+			results.add(pool.submit(new Callable<EpisodeResult>() {
+				@Override
+				public EpisodeResult call() throws Exception {
+					EpisodeResult result = run(episode);
+					synchronized (out) {
+						out.println(result);
+					}
+					return result;
+				}
+			}));
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		int footmenWins = 0;
+		int archerWins = 0;
+		int failed = 0;
+		long turns = 0;
+		double turnMillis = 0;
+		for (Future<EpisodeResult> future : results) {
+			try {
+				EpisodeResult result = future.get();
+				if (FOOTMEN_WIN.equals(result.winner)) {
+					footmenWins++;
+				} else if (ARCHERS_WIN.equals(result.winner)) {
+					archerWins++;
+				}
+				turns += result.turnMillis.size();
+				for (double millis : result.turnMillis) {
+					turnMillis += millis;
+				}
+			} catch (ExecutionException e) {
+				failed++;
+				System.err.println("Episode failed: " + e.getCause());
+			}
+		}
+		System.err.printf("%d episodes in %.1fs (%.0f per hour): footmen %d, archers %d, none %d, failed %d, mean turn %.2fms%n",
+				episodes, seconds, episodes * 3600 / seconds, footmenWins, archerWins,
+				episodes - footmenWins - archerWins - failed, failed, turns == 0 ? 0 : turnMillis / turns);
+	}
+
+	/**
+	 * Plays one episode on the calling thread
+	 * @param episode The number of the episode, which picks its map and seed
+	 * @return How the episode went
+	 */
+	public EpisodeResult run(int episode) throws InterruptedException {
+		String map = maps[episode % maps.length];
+		int episodeSeed = seed + episode;
+		StateCreator creator = creators.get(map);
+
+		Configuration configuration = new Configuration();
+		configuration.put(ConfigurationValues.MODEL_CONQUEST.key, true);
+		configuration.put(ConfigurationValues.MODEL_MIDAS.key, false);
+		configuration.put(ConfigurationValues.MODEL_MANIFEST_DESTINY.key, false);
+		configuration.put(ConfigurationValues.MODEL_TIME_LIMIT.key, STEP_LIMIT);
+
+		TimedAgent footmen = new TimedAgent(monteCarlo ? new MonteCarloTreeSearch(FOOTMEN, agentArgs)
+				: new MinimaxAlphaBeta(FOOTMEN, agentArgs));
+		Agent archers = createArcherAgent();
+		SimpleModel model = new SimpleModel(creator.createState(), episodeSeed, creator, configuration);
+		Environment environment = new Environment(new Agent[] { footmen, archers }, model, episodeSeed);
+		environment.runEpisode();
+
+		State.StateView finalState = model.getState().getView(Agent.OBSERVER_ID);
+		String winner = NO_WINNER;
+		if (finalState.getUnits(ARCHERS).isEmpty()) {
+			winner = FOOTMEN_WIN;
+		} else if (finalState.getUnits(FOOTMEN).isEmpty()) {
+			winner = ARCHERS_WIN;
+		}
+		return new EpisodeResult(episode, map, episodeSeed, winner, environment.getStepNumber(), footmen.turnMillis);
+	}
+
+	/**
+	 * ArcherAgent is compiled into the default package, so it can only be
+	 * reached by name
+	 */
+	private static Agent createArcherAgent() {
+		try {
+			return (Agent) Class.forName("ArcherAgent").getConstructor(int.class, String[].class)
+					.newInstance(ARCHERS, new String[] { String.valueOf(ARCHERS) });
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("ArcherAgent must be on the classpath", e);
+		}
+	}
+
+	/**
+	 * Loads a map's state file
+	 * @param path The state file
+	 * @return A creator of the map's starting state
+	 * @throws JAXBException If the file is not a SEPIA state
+	 */
+	public static StateCreator loadMap(String path) throws JAXBException {
+		XmlState xml = (XmlState) JAXBContext.newInstance(XmlState.class).createUnmarshaller().unmarshal(new File(path));
+		return new XmlStateCreator(xml);
+	}
+
+	private static String get(Map<String, String> options, String key, String defaultValue) {
+		String value = options.get(key);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * The outcome of one episode
+	 */
+	public static class EpisodeResult {
+		public final int episode;
+		public final String map;
+		public final int seed;
+		public final String winner;
+		public final int steps;
+		public final List<Double> turnMillis;
+
+		EpisodeResult(int episode, String map, int seed, String winner, int steps, List<Double> turnMillis) {
+			this.episode = episode;
+			this.map = map;
+			this.seed = seed;
+			this.winner = winner;
+			this.steps = steps;
+			this.turnMillis = turnMillis;
+		}
+
+		@Override
+		public String toString() {
+			double total = 0;
+			double max = 0;
+			StringBuilder turns = new StringBuilder();
+			for (double millis : turnMillis) {
+				total += millis;
+				max = Math.max(max, millis);
+				turns.append(turns.length() == 0 ? "" : " ").append(String.format("%.2f", millis));
+			}
+			return String.format("%d,%s,%d,%s,%d,%d,%.2f,%.2f,%s", episode, map, seed, winner, steps,
+					turnMillis.size(), turnMillis.isEmpty() ? 0 : total / turnMillis.size(), max, turns);
+		}
+	}
+
+	/**
+	 * Passes everything on to another agent, timing each of its turns
+	 */
+	private static class TimedAgent extends Agent {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Agent agent;
+		private final List<Double> turnMillis = new ArrayList<>();
+
+		TimedAgent(Agent agent) {
+			super(agent.getPlayerNumber());
+			this.agent = agent;
+		}
+
+		@Override
+		public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+			long start = System.nanoTime();
+			Map<Integer, Action> actions = agent.initialStep(newstate, statehistory);
+			turnMillis.add((System.nanoTime() - start) / 1e6);
+			return actions;
+		}
+
+		@Override
+		public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
+			long start = System.nanoTime();
+			Map<Integer, Action> actions = agent.middleStep(newstate, statehistory);
+			turnMillis.add((System.nanoTime() - start) / 1e6);
+			return actions;
+		}
+
+		@Override
+		public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+			agent.terminalStep(newstate, statehistory);
+		}
+
+		@Override
+		public void savePlayerData(OutputStream os) {
+			agent.savePlayerData(os);
+		}
+
+		@Override
+		public void loadPlayerData(InputStream is) {
+			agent.loadPlayerData(is);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size hash table of the utilities of previously evaluated game
+ * states, indexed by the canonical key of the unit positions and HP. The
+ * utility does not depend on the side to move or on how a state was
+ * reached, so every path to the same units, or to their mirror image,
+ * shares one entry, and the entry stays valid for the rest of the episode.
+ *
+ * An entry packs the utility, the distance of each footman to its archer
+ * and the turn it was last used into a single long, so a state found in the
+ * cache also hands its distances on to its children. Slots are kept in one
+ * array of key and entry pairs and looked up by open addressing: a state is
+ * stored in the first PROBE_WINDOW slots from its home slot. With the LRU
+ * policy a new state takes an empty slot of the window, or else the one
+ * least recently used, counted in turns. With the ALWAYS policy the window
+ * is only the home slot and a new state always replaces what is there.
+ *
+ * As in TranspositionTable the cache is shared by all search threads without
+ * any locking: a slot stores the key XOR the entry, so a slot torn by two
+ * threads writing at once reads as a miss.
+ */
+public class EvaluationCache {
+
+	/**
+	 * Which state is replaced when a new one is stored
+	 */
+	public enum Replacement { LRU, ALWAYS }
+
+	//Distances too long to pack are stored as unknown
+	public static final int UNKNOWN_DISTANCE = 0xFFF;
+	//Number of slots a state may be stored in under the LRU policy
+	private static final int PROBE_WINDOW = 4;
+	//Turn stamps run from 1 to MAX_STAMP so a packed entry is never 0
+	private static final int MAX_STAMP = 0xFF;
+
+	private final long[] slots;
+	private final int mask;
+	private final int window;
+	private int stamp = 1;
+
+	/**
+	 * Creates an empty cache
+	 * @param size The requested number of entries, rounded up to a power of two
+	 * @param replacement Which state a new state replaces
+	 */
+	public EvaluationCache(int size, Replacement replacement) {
+		int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		if (size <= 1) {
+			capacity = 1;
+		}
+		slots = new long[2 * capacity];
+		mask = capacity - 1;
+		window = replacement == Replacement.LRU ? Math.min(PROBE_WINDOW, capacity) : 1;
+	}
+
+	/**
+	 * Starts a new turn, making the entries used before it older than the
+	 * ones used from now on
+	 */
+	public void nextTurn() {
+		stamp = stamp == MAX_STAMP ? 1 : stamp + 1;
+	}
+
+	/**
+	 * Empties the cache, for the start of a new episode
+	 */
+	public void clear() {
+		Arrays.fill(slots, 0);
+		stamp = 1;
+	}
+
+	/**
+	 * Looks up a state
+	 * @param key The canonical key of the state's units, without the side to move
+	 * @return The packed entry for the state, or 0 if it is not in the cache
+	 */
+	public long probe(long key) {
+		int home = home(key);
+		for (int i = 0; i < window; i++) {
+			int slot = 2 * ((home + i) & mask);
+			long entry = slots[slot + 1];
+			if (entry != 0 && (slots[slot] ^ entry) == key) {
+				if (window > 1 && stampOf(entry) != stamp) {
+					write(slot, key, withStamp(entry));
+				}
+				return entry;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Records the utility of a state
+	 * @param key The canonical key of the state's units, without the side to move
+	 * @param utility The utility of the state
+	 * @param firstDistance The distance of the canonically first footman to its archer
+	 * @param secondDistance The distance of the canonically second footman to its archer
+	 */
+	public void store(long key, int utility, int firstDistance, int secondDistance) {
+		long entry = pack(utility, firstDistance, secondDistance);
+		int home = home(key);
+		int victim = 2 * home;
+		int victimAge = -1;
+		for (int i = 0; i < window; i++) {
+			int slot = 2 * ((home + i) & mask);
+			long old = slots[slot + 1];
+			if (old == 0 || (slots[slot] ^ old) == key) {
+				victim = slot;
+				break;
+			}
+			int age = (stamp - stampOf(old) + MAX_STAMP) % MAX_STAMP;
+			if (age > victimAge) {
+				victim = slot;
+				victimAge = age;
+			}
+		}
+		write(victim, key, entry);
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	public static int utilityOf(long entry) {
+		return (int) entry;
+	}
+
+	public static int firstDistanceOf(long entry) {
+		return (int) ((entry >>> 32) & 0xFFF);
+	}
+
+	public static int secondDistanceOf(long entry) {
+		return (int) ((entry >>> 44) & 0xFFF);
+	}
+
+	private static int stampOf(long entry) {
+		return (int) (entry >>> 56);
+	}
+
+	private long pack(int utility, int firstDistance, int secondDistance) {
+		return (utility & 0xFFFFFFFFL) | ((long) packDistance(firstDistance) << 32)
+				| ((long) packDistance(secondDistance) << 44) | ((long) stamp << 56);
+	}
+
+	private static int packDistance(int distance) {
+		return distance >= 0 && distance < UNKNOWN_DISTANCE ? distance : UNKNOWN_DISTANCE;
+	}
+
+	private long withStamp(long entry) {
+		return (entry & 0x00FFFFFFFFFFFFFFL) | ((long) stamp << 56);
+	}
+
+	private void write(int slot, long key, long entry) {
+		slots[slot] = key ^ entry;
+		slots[slot + 1] = entry;
+	}
+
+	private int home(long key) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+}
@@ -2,11 +2,13 @@ package edu.cwru.sepia.agent.minimax;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.Stack;
@@ -38,8 +40,13 @@ public class GameState implements Comparable<GameState> {
 	private static final int W_ARCHER_HP = -10;
 	private static final int W_FOOTMAN_ALIVE = 10;
 	private static final int W_ARCHER_ALIVE = -100;
-	private static final int FOOTMAN_RANGE = 1;
-	private static final int ARCHER_RANGE = 8;
+	static final int FOOTMAN_RANGE = 1;
+	static final int ARCHER_RANGE = 8;
+	private static final int NO_DISTANCE = -1;
+	//Ints saved per move on the undo stack, and the flags among them
+	private static final int UNDO_FRAME = 8;
+	private static final int UNDO_IS_MAX = 1;
+	private static final int UNDO_UTILITY_COMPUTED = 2;
 
 	//Game state variables including units, depth, utility, map
 	//properties and valid directions to move in.
@@ -49,10 +56,33 @@ public class GameState implements Comparable<GameState> {
 	private int archerNum = 1;
 	private int depth = 0;
 	private int utility;
+	private boolean utilityComputed;
 	private boolean isMax = true;
 	private List<Direction> validDirections;
 	private List<ResourceView> obstacles;
 	private AstarAgent aStarAgent;
+	//Zobrist key of the unit positions and HP, see getZobristKey()
+	private long zobristKey;
+	//Features of getUtility() carried from parent to child and updated by
+	//applyActions(): the summed HP of each side, and the distance of each
+	//footman to the archer it is paired with, NO_DISTANCE until computed
+	private int footmenHealth;
+	private int archerHealth;
+	private int firstDistance = NO_DISTANCE;
+	private int secondDistance = NO_DISTANCE;
+	//Undo stack of makeMove(): the key before each move, each move's first
+	//saved unit, utility, depth, side to move and features, and each saved
+	//unit with its x, y and HP before the move. Created on the first makeMove().
+	private long[] undoKeys;
+	private int[] undoFrames;
+	private GameUnit[] undoUnits;
+	private int[] undoValues;
+	private int undoMoveCount = 0;
+	private int undoUnitCount = 0;
+	//Where child generation, utility and A* times are recorded, null when not collected
+	private SearchStatistics statistics;
+	//Utilities of states already evaluated this episode, null when not cached
+	private EvaluationCache evaluationCache;
 
 	/**
 	 * You will implement this constructor. It will extract all of the needed
@@ -106,6 +136,11 @@ public class GameState implements Comparable<GameState> {
 			obstacles.add(resource);
 		}
 		aStarAgent = new AstarAgent(xExtent, yExtent);
+		for (GameUnit unit : getEntities()) {
+			zobristKey ^= Zobrist.unit(unit);
+		}
+		footmenHealth = sumHealth(footmen);
+		archerHealth = sumHealth(archers);
 	}
 
 	/**
@@ -125,6 +160,7 @@ public class GameState implements Comparable<GameState> {
 	 */
 	public GameState(Integer utility) {
 		this.utility = utility;
+		this.utilityComputed = true;
 		footmen = new ArrayList<GameUnit>();
 		archers = new ArrayList<GameUnit>();
 		this.validDirections = createValidDirectionsList();
@@ -164,8 +200,39 @@ public class GameState implements Comparable<GameState> {
 			this.obstacles.add(rView);
 		}
 		aStarAgent = new AstarAgent(xExtent, yExtent);
+		this.zobristKey = parent.zobristKey;
+		this.statistics = parent.statistics;
+		this.evaluationCache = parent.evaluationCache;
+		this.footmenHealth = parent.footmenHealth;
+		this.archerHealth = parent.archerHealth;
+		this.firstDistance = parent.firstDistance;
+		this.secondDistance = parent.secondDistance;
 	}
 
+
+	/**
+	 * Creates a state of the same game as the template with the given units,
+	 * used to unpack a PackedGameState
+	 * @param template A state supplying the map size and obstacles
+	 * @param footmen The footmen of the new state
+	 * @param archers The archers of the new state
+	 */
+	GameState(GameState template, List<GameUnit> footmen, List<GameUnit> archers){
+		this.footmen = footmen;
+		this.archers = archers;
+		this.xExtent = template.getXExtent();
+		this.yExtent = template.getYExtent();
+		this.validDirections = createValidDirectionsList();
+		this.obstacles = template.obstacles;
+		aStarAgent = new AstarAgent(xExtent, yExtent);
+		this.statistics = template.statistics;
+		this.evaluationCache = template.evaluationCache;
+		for (GameUnit unit : getEntities()) {
+			zobristKey ^= Zobrist.unit(unit);
+		}
+		footmenHealth = sumHealth(footmen);
+		archerHealth = sumHealth(archers);
+	}
 	
 	/**
 	 * Gets a list of all valid directions for movement in the state
@@ -208,6 +275,10 @@ public class GameState implements Comparable<GameState> {
 		return yExtent;
 	}
 
+	public boolean hasObstacles() {
+		return !obstacles.isEmpty();
+	}
+
 	public void setYExtent(int yExtent) {
 		this.yExtent = yExtent;
 	}
@@ -228,16 +299,112 @@ public class GameState implements Comparable<GameState> {
 		this.depth = depth;
 	}
 
+	/**
+	 * Gets the Zobrist key of this state. The key covers the position and HP
+	 * of every unit and which side is to move, and is kept up to date by
+	 * applyActions.
+	 * @return The Zobrist key of this state
+	 */
+	public long getZobristKey() {
+		return isMax ? zobristKey : zobristKey ^ Zobrist.SIDE_TO_MOVE;
+	}
+
+	/**
+	 * Gets the canonical key of this state, which is the same for the state
+	 * and its mirror image. Units of a type are interchangeable, but
+	 * getUtility() pairs each footman with an archer, so a state is only
+	 * mirrored by swapping both footmen together with the archers they are
+	 * paired with, or just the footmen when they share one archer. Of the
+	 * two, the state whose first footman stands first by x and then by y is
+	 * canonical, and the other is keyed as if its swapped units had each
+	 * other's IDs.
+	 * @return The canonical key of this state, with the side to move
+	 */
+	public long getCanonicalKey() {
+		long key = canonicalUnitKey(pairsSwapped());
+		return isMax ? key : key ^ Zobrist.SIDE_TO_MOVE;
+	}
+
+	/**
+	 * Checks whether two different joint actions of the side to move can
+	 * lead to mirror images of each other. That takes the footmen swapping
+	 * places while the archers stand still, so it only happens on the
+	 * footmen's turn, when both footmen are paired with the same archer and
+	 * have the same HP.
+	 * @return True if the children of this state must be checked for mirror images
+	 */
+	public boolean hasMirroredChildren() {
+		return isMax && footmen.size() == 2 && pairedArcher(0) == pairedArcher(1)
+				&& footmen.get(0).getHP() == footmen.get(1).getHP();
+	}
+
+	/**
+	 * Gets whether this state is the mirror image of its canonical state
+	 */
+	private boolean pairsSwapped() {
+		if (footmen.size() != 2) {
+			return false;
+		}
+		GameUnit first = footmen.get(0);
+		GameUnit second = footmen.get(1);
+		return first.getX() != second.getX() ? first.getX() > second.getX() : first.getY() > second.getY();
+	}
+
+	/**
+	 * Gets the Zobrist key of the units of this state's canonical state,
+	 * without the side to move
+	 */
+	private long canonicalUnitKey(boolean swapped) {
+		if (!swapped) {
+			return zobristKey;
+		}
+		long key = zobristKey ^ swapKeys(footmen.get(0), footmen.get(1));
+		if (pairedArcher(0) != pairedArcher(1)) {
+			key ^= swapKeys(pairedArcher(0), pairedArcher(1));
+		}
+		return key;
+	}
+
+	/**
+	 * Gets the change in key from giving two units each other's IDs
+	 */
+	private static long swapKeys(GameUnit first, GameUnit second) {
+		return Zobrist.unit(first) ^ Zobrist.unit(second)
+				^ Zobrist.unit(second.getID(), first) ^ Zobrist.unit(first.getID(), second);
+	}
+
+	/**
+	 * Sets where this state and the states created from it record the time
+	 * spent generating children, computing utilities and finding A* paths
+	 * @param statistics The statistics to record to, or null to record nothing
+	 */
+	public void setStatistics(SearchStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Sets where this state and the states created from it look up and
+	 * store their utilities
+	 * @param evaluationCache The cache to use, or null to always compute the utility
+	 */
+	public void setEvaluationCache(EvaluationCache evaluationCache) {
+		this.evaluationCache = evaluationCache;
+	}
+
+	/**
+	 * Packs the units and side to move of this state into a PackedGameState
+	 * @return The packed state
+	 */
+	public PackedGameState pack() {
+		return PackedGameState.of(this);
+	}
+
 	/**
 	 * Gets the total health of all footmen
 	 * @return int Total health of all footmen
 	 */
 	public int getFootmenHealth() {
-		int totalHealth = 0;
-		for (GameUnit footman : footmen) {
-			totalHealth += footman.getHP();
-		}
-		return totalHealth;
+		return footmenHealth;
 	}
 
 	/**
@@ -245,9 +412,13 @@ public class GameState implements Comparable<GameState> {
 	 * @return in Total health of all archers
 	 */
 	public int getArcherHealth() {
+		return archerHealth;
+	}
+
+	private static int sumHealth(List<GameUnit> units) {
 		int totalHealth = 0;
-		for (GameUnit archer : archers) {
-			totalHealth += archer.getHP();
+		for (GameUnit unit : units) {
+			totalHealth += unit.getHP();
 		}
 		return totalHealth;
 	}
@@ -271,7 +442,9 @@ public class GameState implements Comparable<GameState> {
 	}
 
 	/**
-	 * Applies actions to the state
+	 * Applies actions to the state, updating the features of the utility
+	 * that the actions change: the HP sum of an attacked unit's side, and
+	 * the distance of every footman and archer pair with a unit that moved.
 	 * @param actions The actions to be applied
 	 */
 	public void applyActions(Map<Integer, Action> actions) {
@@ -293,7 +466,14 @@ public class GameState implements Comparable<GameState> {
 				GameUnit unit = getUnit(unitId);
 				GameUnit target = getUnit(targetId);
 
+				zobristKey ^= Zobrist.health(targetId, target.getHP());
 				target.setHP(target.getHP() - unit.getDamage());
+				zobristKey ^= Zobrist.health(targetId, target.getHP());
+				if (footmen.contains(target)) {
+					footmenHealth -= unit.getDamage();
+				} else {
+					archerHealth -= unit.getDamage();
+				}
 			} else if (currentActionType == ActionType.PRIMITIVEMOVE) {
 				//Move the current unit in the desired direction
 				DirectedAction currentDirectedAction = (DirectedAction) currentAction;
@@ -301,24 +481,136 @@ public class GameState implements Comparable<GameState> {
 				GameUnit unit = getUnit(unitID);
 				Direction moveDirection = currentDirectedAction.getDirection();
 
+				zobristKey ^= Zobrist.position(unitID, unit.getX(), unit.getY());
 				unit.setX(unit.getX() + moveDirection.xComponent());
 				unit.setY(unit.getY() + moveDirection.yComponent());
+				zobristKey ^= Zobrist.position(unitID, unit.getX(), unit.getY());
+				if (unit == pairedFootman(0) || unit == pairedArcher(0)) {
+					firstDistance = NO_DISTANCE;
+				}
+				if (unit == pairedFootman(1) || unit == pairedArcher(1)) {
+					secondDistance = NO_DISTANCE;
+				}
 			}
 		}
+		utilityComputed = false;
 	}
 
-	private GameUnit getUnit(int ID) {
-		List<GameUnit> entities = this.getEntities();
+	/**
+	 * getUtility() pairs the first footman with the first archer and the
+	 * second footman with the second archer, or the first if there is only one
+	 */
+	private GameUnit pairedFootman(int pair) {
+		return pair < footmen.size() ? footmen.get(pair) : null;
+	}
+
+	private GameUnit pairedArcher(int pair) {
+		return archers.isEmpty() ? null : archers.get(Math.min(pair, archers.size() - 1));
+	}
 
-		for (GameUnit entity : entities) {
-			if (entity.getID() == ID) {
-				return entity;
+	private GameUnit getUnit(int ID) {
+		for (GameUnit footman : footmen) {
+			if (footman.getID() == ID) {
+				return footman;
+			}
+		}
+		for (GameUnit archer : archers) {
+			if (archer.getID() == ID) {
+				return archer;
 			}
 		}
 
 		return null;
 	}
 
+	/**
+	 * Applies a joint action to this state in place, remembering what it
+	 * changes so unmakeMove() can put it back. This lets a search walk the
+	 * whole tree on one GameState instead of copying it for every child.
+	 * Moves are undone in the reverse order they were made.
+	 *
+	 * The undo information is kept in primitive arrays owned by this state,
+	 * which only grow with the depth of the search, so making and unmaking a
+	 * move allocates nothing.
+	 *
+	 * @param actions The joint action to apply
+	 */
+	public void makeMove(Map<Integer, Action> actions) {
+		long start = statistics == null ? 0 : System.nanoTime();
+		if (undoKeys == null) {
+			undoKeys = new long[16];
+			undoFrames = new int[16 * UNDO_FRAME];
+			undoUnits = new GameUnit[32];
+			undoValues = new int[32 * 3];
+		}
+		if (undoMoveCount == undoKeys.length) {
+			undoKeys = Arrays.copyOf(undoKeys, undoKeys.length * 2);
+			undoFrames = Arrays.copyOf(undoFrames, undoFrames.length * 2);
+		}
+		int frame = undoMoveCount * UNDO_FRAME;
+		undoKeys[undoMoveCount] = zobristKey;
+		undoFrames[frame] = undoUnitCount;
+		undoFrames[frame + 1] = utility;
+		undoFrames[frame + 2] = depth;
+		undoFrames[frame + 3] = (isMax ? UNDO_IS_MAX : 0) | (utilityComputed ? UNDO_UTILITY_COMPUTED : 0);
+		undoFrames[frame + 4] = footmenHealth;
+		undoFrames[frame + 5] = archerHealth;
+		undoFrames[frame + 6] = firstDistance;
+		undoFrames[frame + 7] = secondDistance;
+		undoMoveCount++;
+
+		for (Action action : actions.values()) {
+			GameUnit changed;
+			if (action.getType() == ActionType.COMPOUNDATTACK) {
+				changed = getUnit(((TargetedAction) action).getTargetId());
+			} else {
+				changed = getUnit(action.getUnitId());
+			}
+			if (undoUnitCount == undoUnits.length) {
+				undoUnits = Arrays.copyOf(undoUnits, undoUnits.length * 2);
+				undoValues = Arrays.copyOf(undoValues, undoValues.length * 2);
+			}
+			undoUnits[undoUnitCount] = changed;
+			undoValues[undoUnitCount * 3] = changed.getX();
+			undoValues[undoUnitCount * 3 + 1] = changed.getY();
+			undoValues[undoUnitCount * 3 + 2] = changed.getHP();
+			undoUnitCount++;
+		}
+
+		applyActions(actions);
+		if (statistics != null) {
+			statistics.recordChildGeneration(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Takes back the last joint action applied with makeMove(), restoring
+	 * the units, the Zobrist key, the cached utility and its features, depth
+	 * and side to move.
+	 */
+	public void unmakeMove() {
+		undoMoveCount--;
+		int frame = undoMoveCount * UNDO_FRAME;
+		int firstUnit = undoFrames[frame];
+		for (int i = undoUnitCount - 1; i >= firstUnit; i--) {
+			GameUnit unit = undoUnits[i];
+			unit.setX(undoValues[i * 3]);
+			unit.setY(undoValues[i * 3 + 1]);
+			unit.setHP(undoValues[i * 3 + 2]);
+			undoUnits[i] = null;
+		}
+		undoUnitCount = firstUnit;
+		zobristKey = undoKeys[undoMoveCount];
+		utility = undoFrames[frame + 1];
+		depth = undoFrames[frame + 2];
+		isMax = (undoFrames[frame + 3] & UNDO_IS_MAX) != 0;
+		utilityComputed = (undoFrames[frame + 3] & UNDO_UTILITY_COMPUTED) != 0;
+		footmenHealth = undoFrames[frame + 4];
+		archerHealth = undoFrames[frame + 5];
+		firstDistance = undoFrames[frame + 6];
+		secondDistance = undoFrames[frame + 7];
+	}
+
 	/**
 	 * You will implement this function.
 	 *
@@ -340,13 +632,44 @@ public class GameState implements Comparable<GameState> {
 	 * @return The weighted linear combination of the features
 	 */
 	public int getUtility() {
-		if (utility == 0) {
-			
-			int distance1FromArchers = minDistanceFromArcher(footmen.get(0), true);
-			int distance2FromArchers = 0;
-			if (footmen.size() >1){
-				distance2FromArchers = minDistanceFromArcher(footmen.get(1), false);	
+		//The utility only depends on the units, so the cache key leaves out
+		//the side to move. A mirrored state shares its canonical state's
+		//entry, whose distances are stored in canonical pair order.
+		boolean swapped = false;
+		long cacheKey = 0;
+		if (!utilityComputed && evaluationCache != null) {
+			swapped = pairsSwapped();
+			cacheKey = canonicalUnitKey(swapped);
+			long entry = evaluationCache.probe(cacheKey);
+			if (statistics != null) {
+				statistics.recordEvaluationCacheProbe(entry != 0);
+			}
+			if (entry != 0) {
+				utility = EvaluationCache.utilityOf(entry);
+				int first = swapped ? EvaluationCache.secondDistanceOf(entry) : EvaluationCache.firstDistanceOf(entry);
+				int second = swapped ? EvaluationCache.firstDistanceOf(entry) : EvaluationCache.secondDistanceOf(entry);
+				if (first != EvaluationCache.UNKNOWN_DISTANCE) {
+					firstDistance = first;
+				}
+				if (second != EvaluationCache.UNKNOWN_DISTANCE) {
+					secondDistance = second;
+				}
+				utilityComputed = true;
 			}
+		}
+		if (!utilityComputed) {
+			long start = statistics == null ? 0 : System.nanoTime();
+
+			//Only pairs with a unit that moved since the distance was last
+			//computed, in this state or an ancestor, are measured again
+			if (firstDistance == NO_DISTANCE) {
+				firstDistance = minDistanceFromArcher(footmen.get(0), true);
+			}
+			if (secondDistance == NO_DISTANCE) {
+				secondDistance = footmen.size() > 1 ? minDistanceFromArcher(footmen.get(1), false) : 0;
+			}
+			int distance1FromArchers = firstDistance;
+			int distance2FromArchers = secondDistance;
 //			for (GameUnit footman : footmen) {
 //				distanceFromArchers += minDistanceFromArcher(footman);
 //			}
@@ -357,6 +680,14 @@ public class GameState implements Comparable<GameState> {
 					+ (W_FOOTMAN_DISTANCE * distance2FromArchers)
 					+ (W_FOOTMAN_ALIVE * footmen.size()) + (W_ARCHER_ALIVE * archers
 					.size());
+			utilityComputed = true;
+			if (evaluationCache != null) {
+				evaluationCache.store(cacheKey, utility, swapped ? secondDistance : firstDistance,
+						swapped ? firstDistance : secondDistance);
+			}
+			if (statistics != null) {
+				statistics.recordUtility(System.nanoTime() - start);
+			}
 		}
 		return utility;
 	}
@@ -392,7 +723,7 @@ public class GameState implements Comparable<GameState> {
 			//Euclidean Distance Implementation
 			
 			if (obstacles.size() > 0) {
-				Stack<MapLocation> aStarPath = aStarAgent.findPath(obstacles, footman, archer);
+				Stack<MapLocation> aStarPath = findPath(footman, archer);
 				if (aStarPath != null){
 					minDist = aStarPath.size();
 				} 
@@ -414,7 +745,7 @@ public class GameState implements Comparable<GameState> {
 			
 			//If there are obstacles, use A* distance from enemies
 			if (obstacles.size() > 0) {
-				Stack<MapLocation> aStarPath = aStarAgent.findPath(obstacles, footman, archer);
+				Stack<MapLocation> aStarPath = findPath(footman, archer);
 				if (aStarPath != null){
 					minDist = aStarPath.size();
 				} 
@@ -444,6 +775,20 @@ public class GameState implements Comparable<GameState> {
 		return archers.isEmpty() ? 0 : (int)minDist;
 	}
 
+	/**
+	 * Finds the A* path between two units around the obstacles, recording
+	 * the time taken when statistics are collected
+	 */
+	private Stack<MapLocation> findPath(GameUnit from, GameUnit to) {
+		if (statistics == null) {
+			return aStarAgent.findPath(obstacles, from, to);
+		}
+		long start = System.nanoTime();
+		Stack<MapLocation> path = aStarAgent.findPath(obstacles, from, to);
+		statistics.recordAstar(System.nanoTime() - start);
+		return path;
+	}
+
 	/**
 	 * You will implement this function.
 	 *
@@ -459,13 +804,41 @@ public class GameState implements Comparable<GameState> {
 	 * To get the resulting from a move in that direction you can do the
 	 * following x += direction.xComponent() y += direction.yComponent()
 	 *
+	 * Every child is created up front; the search itself uses
+	 * getJointActions() and getChildIterator() to create children only as it
+	 * reaches them. A child that is the mirror image of an earlier child is
+	 * left out, see hasMirroredChildren().
+	 *
 	 * @return All possible actions and their associated resulting game state
 	 */
 	public List<GameStateChild> getChildren() {
+		List<GameStateChild> children = new ArrayList<>();
+		Iterator<GameStateChild> childIterator = getChildIterator(getJointActions());
+		boolean mirrored = hasMirroredChildren();
+		Set<Long> childKeys = new HashSet<>();
+		while (childIterator.hasNext()) {
+			GameStateChild child = childIterator.next();
+			if (!mirrored || childKeys.add(child.state.getCanonicalKey())) {
+				children.add(child);
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Generates every joint action the side to move can take, one action per
+	 * unit, without creating the states they lead to. Joint actions where
+	 * both units would move to the same place or into an obstacle are left
+	 * out. Each unit's attacks come before its moves, so joint actions with
+	 * more attacks come first.
+	 *
+	 * @return The joint actions of the side to move
+	 */
+	public List<Map<Integer, Action>> getJointActions() {
+		long start = statistics == null ? 0 : System.nanoTime();
 
 		List<Action> unitOneActions = new ArrayList<>();
 		List<Action> unitTwoActions = new ArrayList<>();
-		List<Map<Integer, Action>> action = new ArrayList<>();
 		int unitOneID = 0;
 		int unitTwoID = 0;
 		boolean twoUnits = false;
@@ -488,10 +861,10 @@ public class GameState implements Comparable<GameState> {
 			}
 		}
 
-		List<GameStateChild> children = new ArrayList<>();
-		Map<Integer, Action> actionMap = new HashMap<>();
+		List<Map<Integer, Action>> jointActions = new ArrayList<>();
+		Map<Integer, Action> actionMap;
 
-		// Make all the possible game states, eliminating those options where
+		// Make all the possible joint actions, eliminating those options where
 		// player units move to the same location.
 		if (twoUnits) {
 			for (Action unitOneAction : unitOneActions) {
@@ -500,11 +873,7 @@ public class GameState implements Comparable<GameState> {
 					actionMap.put(unitOneID, unitOneAction);
 					actionMap.put(unitTwoID, unitTwoAction);
 					if(!badActions(actionMap, unitOneID, unitTwoID)){
-						// ** Need to apply actions to new state
-						GameState newState = new GameState(this);
-						newState.applyActions(actionMap);
-						// ** Then add new state child to list of state children
-						children.add(new GameStateChild(actionMap, newState));
+						jointActions.add(actionMap);
 					}
 				}
 			}
@@ -512,14 +881,98 @@ public class GameState implements Comparable<GameState> {
 			for (Action unitOneAction : unitOneActions) {
 				actionMap = new HashMap<>();
 				actionMap.put(unitOneID, unitOneAction);
-				// ** Need to apply actions to new state
-				GameState newState = new GameState(this);
-				newState.applyActions(actionMap);
-				// ** Then add new state child to list of state children
-				children.add(new GameStateChild(actionMap, newState));
+				jointActions.add(actionMap);
 			}
 		}
-		return children;
+		if (statistics != null) {
+			statistics.recordChildGeneration(System.nanoTime() - start);
+		}
+		return jointActions;
+	}
+
+	/**
+	 * Gets the joint actions of the side to move in which every living unit
+	 * with a living enemy in range attacks, for the quiescence search. Units
+	 * with nothing to attack are left out of the joint actions rather than
+	 * moved, and dead units neither attack nor are attacked.
+	 * @return Every combination of attacks, empty if no unit can attack
+	 */
+	public List<Map<Integer, Action>> getAttackActions() {
+		long start = statistics == null ? 0 : System.nanoTime();
+		List<Map<Integer, Action>> jointActions = new ArrayList<>();
+		jointActions.add(new HashMap<Integer, Action>());
+		for (GameUnit unit : isMax ? footmen : archers) {
+			if (unit.getHP() <= 0) {
+				continue;
+			}
+			List<Action> attacks = new ArrayList<>();
+			for (GameUnit enemy : enemiesInRange(unit)) {
+				if (enemy.getHP() > 0) {
+					attacks.add(Action.createCompoundAttack(unit.getID(), enemy.getID()));
+				}
+			}
+			if (attacks.isEmpty()) {
+				continue;
+			}
+			List<Map<Integer, Action>> combined = new ArrayList<>();
+			for (Map<Integer, Action> jointAction : jointActions) {
+				for (Action attack : attacks) {
+					Map<Integer, Action> actionMap = new HashMap<>(jointAction);
+					actionMap.put(unit.getID(), attack);
+					combined.add(actionMap);
+				}
+			}
+			jointActions = combined;
+		}
+		if (jointActions.get(0).isEmpty()) {
+			jointActions.clear();
+		}
+		if (statistics != null) {
+			statistics.recordChildGeneration(System.nanoTime() - start);
+		}
+		return jointActions;
+	}
+
+	/**
+	 * Creates the state reached by taking a joint action in this state
+	 * @param jointAction The action of each unit that moves
+	 * @return The joint action and the state it leads to
+	 */
+	public GameStateChild createChild(Map<Integer, Action> jointAction) {
+		long start = statistics == null ? 0 : System.nanoTime();
+		GameState newState = new GameState(this);
+		newState.applyActions(jointAction);
+		if (statistics != null) {
+			statistics.recordChildGeneration(System.nanoTime() - start);
+		}
+		return new GameStateChild(jointAction, newState);
+	}
+
+	/**
+	 * Iterates over the children reached by the given joint actions, in
+	 * their order. Each child state is only created when the iterator reaches
+	 * it, so a search that cuts off early never pays for the rest.
+	 *
+	 * @param jointActions Joint actions of the side to move, see getJointActions()
+	 * @return An iterator creating one child per joint action
+	 */
+	public Iterator<GameStateChild> getChildIterator(final List<Map<Integer, Action>> jointActions) {
+		return new Iterator<GameStateChild>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < jointActions.size();
+			}
+
+			@Override
+			public GameStateChild next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return createChild(jointActions.get(next++));
+			}
+		};
 	}
 
 	private boolean badActions(Map<Integer, Action> actionMap, int unitOneID,
@@ -573,9 +1026,15 @@ public class GameState implements Comparable<GameState> {
 		int playerX = player.getX();
 		int playerY = player.getY();
 
+		// Add all possible attacks to the action list for this player first
+		for (GameUnit enemy : enemiesInRange(player)) {
+			actions.add(Action.createCompoundAttack(player.getID(),
+					enemy.getID()));
+		}
+
 		//Uses A* search to determine moves if there are obstacles on the map
 		if (obstacles.size() > 0 ) {
-			Stack<MapLocation> aStarPath = aStarAgent.findPath(obstacles, player, getClosestEnemy(player, enemies));
+			Stack<MapLocation> aStarPath = findPath(player, getClosestEnemy(player, enemies));
 			if (aStarPath.size() > 0) {
 				MapLocation nextLoc = aStarPath.pop();
 				actions.add(Action.createPrimitiveMove(player.getID(), getMoveDirection(player, nextLoc)));
@@ -590,11 +1049,6 @@ public class GameState implements Comparable<GameState> {
 				}
 			}
 		}
-		// Add all possible attacks to the action list for this player
-		for (GameUnit enemy : enemiesInRange(player)) {
-			actions.add(Action.createCompoundAttack(player.getID(),
-					enemy.getID()));
-		}
 		return actions;
 	}
 	
@@ -760,15 +1214,10 @@ public class GameState implements Comparable<GameState> {
 		return new Integer(this.getUtility()).compareTo(state.getUtility());
 	}
 
-	public int hashcode() {
-		int hashcode = footmen.size() + archers.size();
-		hashcode *= 31;
-		hashcode += depth * 31;
-		hashcode += getUtility() * 31;
-		if (isMax) {
-			hashcode += 3 * (53 + 31);
-		}
-		return hashcode;
+	@Override
+	public int hashCode() {
+		long key = getZobristKey();
+		return (int) (key ^ (key >>> 32));
 	}
 	
 
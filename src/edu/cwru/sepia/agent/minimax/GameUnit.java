@@ -41,6 +41,22 @@ public class GameUnit {
 		this.ID = gUnit.getID();
 	}
 	
+	/**
+	 * Creates a GameUnit from its individual values
+	 * @param ID The unit's ID
+	 * @param x The unit's x coordinate
+	 * @param y The unit's y coordinate
+	 * @param HP The unit's current HP
+	 * @param damage The damage the unit deals per attack
+	 */
+	public GameUnit(int ID, int x, int y, int HP, int damage){
+		this.x = x;
+		this.y = y;
+		this.HP = HP;
+		this.damage = damage;
+		this.ID = ID;
+	}
+	
 	public int getX() {
 		return x;
 	}
@@ -1,23 +1,216 @@
 package edu.cwru.sepia.agent.minimax;
 
 import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionType;
 import edu.cwru.sepia.agent.Agent;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 public class MinimaxAlphaBeta extends Agent {
 
+    //Deepest iteration the anytime search will attempt in a single turn
+    private static final int MAX_SEARCH_DEPTH = 64;
+    //Numbers the agents of this JVM, so agents playing at once publish their
+    //statistics under different names
+    private static final AtomicInteger AGENT_IDS = new AtomicInteger();
+    //Default number of transposition table entries
+    private static final int DEFAULT_TABLE_SIZE = 1 << 18;
+    //Late move reductions leave this many children at full depth, and only
+    //reduce states with at least LMR_MIN_DEPTH plies left
+    private static final int LMR_FULL_DEPTH_CHILDREN = 3;
+    private static final int LMR_MIN_DEPTH = 3;
+
     private final int numPlys;
+    //Per-turn search budget in milliseconds, 0 searches to exactly numPlys
+    private final long timeLimit;
+
+    //Depth limit of the iteration currently being searched
+    private int searchDepth;
+    //Time in milliseconds at which the current iteration gives up, 0 for no limit
+    private long deadline;
+    //Set once the deadline passes so the rest of the iteration unwinds
+    private volatile boolean searchStopped;
+
+    //Previously searched states, null when disabled
+    private final TranspositionTable transpositionTable;
+    //Utilities of states evaluated this episode, null when disabled
+    private final EvaluationCache evaluationCache;
+    //Killer moves and history used to order children
+    private final MoveOrdering moveOrdering = new MoveOrdering();
+    //Number of search threads, and the workers that search children in
+    //parallel, started by startPools() and shut down at the end of each
+    //episode, null when single threaded
+    private final int threads;
+    private ForkJoinPool searchPool;
+    //Which children are searched in parallel, and the fewest remaining plies
+    //a state must have for YBW to split its children
+    private final ParallelMode parallelMode;
+    private final int minSplitDepth;
+    //Number of Lazy SMP helper searches run beside the main search
+    private final int lazyHelpers;
+    //Search children after the first with a null window
+    private final boolean principalVariationSearch;
+    //Search by making and unmaking moves on one state instead of copying it
+    private final boolean makeUnmake;
+    //Exact results of one footman against one archer, null when not loaded
+    private final EndgameTablebase tablebase;
+    //Search late quiet children one ply shallower first
+    private final boolean lateMoveReductions;
+    //Most a quiet joint action can change the utility one ply from the
+    //depth limit, 0 disables futility pruning
+    private final int futilityMargin;
+    //Most plies of attacks searched past the depth limit, 0 for none
+    private final int quiescencePlies;
+    //Best joint actions of the first bookTurns turns, searched to bookDepth
+    //plies, null when the book is off
+    private final OpeningBook openingBook;
+    private final int bookTurns;
+    private final int bookDepth;
+    //Half width of the aspiration window, 0 searches with the full window
+    private final int aspirationWindow;
+    //Score of the last completed search of the root this episode
+    private int lastRootScore;
+    private boolean hasLastRootScore;
+    //Workers that search the predicted next position between turns, started
+    //by startPools(), null when not pondering. This is the search pool when
+    //there is one.
+    private final boolean ponder;
+    private ForkJoinPool ponderPool;
+    private ForkJoinTask<?> ponderTask;
+    //The position being pondered, and the best joint action and depth of the
+    //deepest search of it that completed
+    private PackedGameState ponderPosition;
+    private Map<Integer, Action> ponderAction;
+    private int ponderDepth;
+    //Joint action the main search tries first at the root, null for none
+    private Map<Integer, Action> rootHint;
+    //Pick up from the previous turn's search, and the positions its principal
+    //variation expects us to be in with the joint action expected there
+    private final boolean reuseTree;
+    private final Map<PackedGameState, Map<Integer, Action>> expectedPositions = new HashMap<>();
+    //Statistics of the turn being searched, the last finished turn and the
+    //episode so far, all null when statistics are not collected
+    private final SearchStatistics turnStatistics;
+    private final SearchStatistics lastTurnStatistics;
+    private final SearchStatistics episodeStatistics;
+    private final List<SearchListener> searchListeners = new ArrayList<>();
+    private final int agentId = AGENT_IDS.incrementAndGet();
+    private int turn;
+
+    /**
+     * ROOT splits only the root's children between the threads. YBW splits
+     * the children of every state with at least minSplitDepth plies left,
+     * after searching the eldest child alone. LAZY splits nothing, instead
+     * helper threads search the whole tree in a slightly different order and
+     * share what they find through the transposition table.
+     */
+    private enum ParallelMode { ROOT, YBW, LAZY }
 
+    /**
+     * The first argument is the number of plys to search. Any further arguments
+     * are optional key=value pairs:
+     *
+     * timeLimit=ms: search by iterative deepening for at most ms milliseconds
+     * per turn and play the best move of the deepest completed iteration
+     * instead of searching to a fixed number of plys
+     *
+     * ttSize=entries: number of transposition table entries, rounded up to a
+     * power of two, 0 disables the table
+     *
+     * evalCache=entries: number of evaluation cache entries, rounded up to a
+     * power of two. The cache keeps the utilities of the states evaluated
+     * this episode so a state reached again, by another path or on a later
+     * turn, is not evaluated twice. 0, the default, disables the cache.
+     *
+     * evalCacheReplace=lru|always: when a state's slots are full, replace the
+     * one least recently used (lru, the default) or always replace the state
+     * in its first slot (always)
+     *
+     * threads=n: search on n threads
+     *
+     * parallel=root|ybw|lazy: with more than one thread, split only the
+     * root's children (root, the default), split deeper states after their
+     * eldest child is searched (ybw, Young Brothers Wait) or run helper
+     * searches that share the transposition table (lazy, Lazy SMP)
+     *
+     * splitDepth=plies: the fewest plies that must remain below a state for
+     * ybw to split its children, 2 by default
+     *
+     * search=alphabeta|pvs: search every child with the full window
+     * (alphabeta, the default) or use principal variation search (pvs)
+     *
+     * aspiration=width: search the root with a window of width either side of
+     * the previous root score, widening it only when the score falls outside
+     *
+     * makeUnmake=true: apply each joint action to the parent state in place
+     * and undo it after searching the child, instead of copying the state
+     * for every child. Children split between threads are still copies.
+     *
+     * ponder=true: after playing a move, keep searching the position expected
+     * after the archers' reply until the next turn starts. Pondering uses the
+     * search pool's threads, or a single thread when there is no pool.
+     *
+     * reuse=true: carry the previous turn's search over. If the new root was
+     * searched exactly last turn, its transposition table entry is taken as
+     * an already completed iteration and iterative deepening continues past
+     * it. Otherwise, if the units stand where last turn's principal variation
+     * expected, the move expected there is searched first.
+     *
+     * lmr=true: late move reductions. Children after the first
+     * LMR_FULL_DEPTH_CHILDREN in which no unit attacks are first searched one
+     * ply shallower with a null window, and searched again at full depth
+     * only if that search says they might beat the best child so far.
+     *
+     * futility=margin: one ply above the depth limit, skip children in which
+     * no unit attacks once the state's own utility is more than margin
+     * outside the window, since moving alone cannot change the utility by
+     * that much. 0, the default, disables futility pruning.
+     *
+     * quiescence=plies: at the depth limit, keep searching joint actions in
+     * which every unit that can attack does, for at most this many plies,
+     * until neither side can attack. 0, the default, scores the state at the
+     * depth limit as it is.
+     *
+     * tablebase=file: look up states with one footman and one archer left in
+     * an endgame tablebase generated by EndgameTablebase for the map, and
+     * score the ones it has a result for instead of searching them
+     *
+     * book=turns: keep an opening book of the first turns of each episode.
+     * A position of those turns found in the book is played from it without
+     * searching, any other is searched to bookDepth plies and added to it.
+     * SEPIA saves the book with the agent's player data.
+     *
+     * bookDepth=plies: how deep the positions in the book are searched, the
+     * number of plys by default. This applies with timeLimit as well.
+     *
+     * stats=true|print: count nodes, cutoffs, transposition table hits and
+     * the time spent generating children, computing utilities and in A*.
+     * The last turn's and the episode's statistics are published as JMX
+     * MBeans while an episode runs and passed to any SearchListener added to
+     * the agent, and print also writes them to standard out after every turn
+     * and episode.
+     */
     public MinimaxAlphaBeta(int playernum, String[] args)
     {
         super(playernum);
@@ -29,42 +222,572 @@ public class MinimaxAlphaBeta extends Agent {
         }
 
         numPlys = Integer.parseInt(args[0]);
+        searchDepth = numPlys;
+
+        Map<String, String> options = parseOptions(args);
+        timeLimit = Long.parseLong(getOption(options, "timeLimit", "0"));
+        int tableSize = Integer.parseInt(getOption(options, "ttSize", String.valueOf(DEFAULT_TABLE_SIZE)));
+        transpositionTable = tableSize > 0 ? new TranspositionTable(tableSize) : null;
+        int cacheSize = Integer.parseInt(getOption(options, "evalCache", "0"));
+        EvaluationCache.Replacement replacement =
+        		EvaluationCache.Replacement.valueOf(getOption(options, "evalCacheReplace", "lru").toUpperCase());
+        evaluationCache = cacheSize > 0 ? new EvaluationCache(cacheSize, replacement) : null;
+        threads = Integer.parseInt(getOption(options, "threads", "1"));
+        parallelMode = ParallelMode.valueOf(getOption(options, "parallel", "root").toUpperCase());
+        lazyHelpers = parallelMode == ParallelMode.LAZY ? threads - 1 : 0;
+        String search = getOption(options, "search", "alphabeta");
+        if (!search.equals("alphabeta") && !search.equals("pvs")) {
+            System.err.println("Unknown search " + search + ", expected alphabeta or pvs");
+            System.exit(1);
+        }
+        principalVariationSearch = search.equals("pvs");
+        aspirationWindow = Integer.parseInt(getOption(options, "aspiration", "0"));
+        makeUnmake = Boolean.parseBoolean(getOption(options, "makeUnmake", "false"));
+        minSplitDepth = Integer.parseInt(getOption(options, "splitDepth", "2"));
+        ponder = Boolean.parseBoolean(getOption(options, "ponder", "false"));
+        reuseTree = Boolean.parseBoolean(getOption(options, "reuse", "false"));
+        lateMoveReductions = Boolean.parseBoolean(getOption(options, "lmr", "false"));
+        futilityMargin = Integer.parseInt(getOption(options, "futility", "0"));
+        quiescencePlies = Integer.parseInt(getOption(options, "quiescence", "0"));
+        String tablebaseFile = getOption(options, "tablebase", null);
+        EndgameTablebase loadedTablebase = null;
+        if (tablebaseFile != null) {
+            try {
+                loadedTablebase = EndgameTablebase.load(new File(tablebaseFile));
+            } catch (IOException e) {
+                System.err.println("Cannot load the endgame tablebase: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        tablebase = loadedTablebase;
+        bookTurns = Integer.parseInt(getOption(options, "book", "0"));
+        bookDepth = Integer.parseInt(getOption(options, "bookDepth", String.valueOf(numPlys)));
+        openingBook = bookTurns > 0 ? new OpeningBook() : null;
+        String stats = getOption(options, "stats", "false");
+        if (stats.equals("true") || stats.equals("print")) {
+            turnStatistics = new SearchStatistics();
+            lastTurnStatistics = new SearchStatistics();
+            episodeStatistics = new SearchStatistics();
+            if (stats.equals("print")) {
+                addSearchListener(new SearchListener() {
+                    @Override
+                    public void turnFinished(int turn, SearchStatistics statistics) {
+                        System.out.println("Turn " + turn + ": " + statistics);
+                    }
+
+                    @Override
+                    public void episodeFinished(int turns, SearchStatistics statistics) {
+                        System.out.println("Episode of " + turns + " turns: " + statistics);
+                    }
+                });
+            }
+        } else {
+            turnStatistics = null;
+            lastTurnStatistics = null;
+            episodeStatistics = null;
+        }
+    }
+
+    /**
+     * Reads the key=value arguments that follow the first agent argument,
+     * for MinimaxAlphaBeta the number of plys.
+     *
+     * @param args The agent arguments from the configuration
+     * @return The options by key
+     */
+    static Map<String, String> parseOptions(String[] args)
+    {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int split = args[i].indexOf('=');
+            if (split < 1) {
+                System.err.println("Agent arguments after the first must be key=value, got " + args[i]);
+                System.exit(1);
+            }
+            options.put(args[i].substring(0, split).trim(), args[i].substring(split + 1).trim());
+        }
+        return options;
+    }
+
+    static String getOption(Map<String, String> options, String key, String defaultValue)
+    {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
     }
 
     @Override
     public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+        turn = 0;
+        if (turnStatistics != null) {
+            turnStatistics.reset();
+            episodeStatistics.reset();
+            registerStatistics("turn", lastTurnStatistics);
+            registerStatistics("episode", episodeStatistics);
+        }
         return middleStep(newstate, statehistory);
     }
 
     @Override
     public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
-        GameStateChild bestChild = null;
+        //The time limit covers the whole turn, including waiting for pondering to stop
+        long turnStart = System.currentTimeMillis();
+        Map<Integer, Action> bestAction = null;
 		try {
-			bestChild = alphaBetaSearch(new GameStateChild(newstate),
-			        0,
-			        true,
-			        new GameStateChild(new HashMap<Integer, Action>(), new GameState(Integer.MIN_VALUE)),
-			        new GameStateChild(new HashMap<Integer, Action>(), new GameState(Integer.MAX_VALUE)));
+			GameStateChild root = new GameStateChild(newstate);
+			root.state.setStatistics(turnStatistics);
+			root.state.setEvaluationCache(evaluationCache);
+			stopPondering();
+			startPools();
+			if (evaluationCache != null) {
+				evaluationCache.nextTurn();
+			}
+			Map<Integer, Action> ponderedAction = null;
+			int ponderedDepth = 0;
+			rootHint = null;
+			PackedGameState position = root.state.pack();
+			boolean bookTurn = openingBook != null && turn < bookTurns;
+			Map<Integer, Action> bookAction = bookTurn ? openingBook.lookup(position, bookDepth) : null;
+			if (ponderPosition != null) {
+				if (ponderPosition.equals(position)) {
+					ponderedAction = ponderAction;
+					ponderedDepth = ponderDepth;
+				} else if (ponderPosition.samePositions(position)) {
+					rootHint = ponderAction;
+				}
+			}
+			if (reuseTree && ponderedAction == null && transpositionTable != null) {
+				long key = root.state.getCanonicalKey();
+				long entry = transpositionTable.probe(key);
+				Map<Integer, Action> tableMove = transpositionTable.getMove(key, root.state.getZobristKey());
+				if (entry != 0 && tableMove != null && TranspositionTable.boundOf(entry) == TranspositionTable.EXACT) {
+					ponderedAction = tableMove;
+					ponderedDepth = TranspositionTable.depthOf(entry);
+				}
+			}
+			if (reuseTree && ponderedAction == null && rootHint == null) {
+				for (Map.Entry<PackedGameState, Map<Integer, Action>> expected : expectedPositions.entrySet()) {
+					if (expected.getKey().samePositions(position)) {
+						rootHint = expected.getValue();
+						break;
+					}
+				}
+			}
+			searchStopped = false;
+			deadline = 0;
+			moveOrdering.newTurn();
+			//Helpers are only started for turns that are actually searched
+			List<ForkJoinTask<?>> helpers = Collections.emptyList();
+			try {
+				if (bookAction != null) {
+					bestAction = bookAction;
+				} else if (bookTurn) {
+					searchDepth = bookDepth;
+					helpers = startLazyHelpers(root.state);
+					bestAction = searchRoot(root.state);
+					if (bestAction != null) {
+						openingBook.record(position, bookDepth, bestAction);
+					}
+				} else if (timeLimit > 0) {
+					helpers = startLazyHelpers(root.state);
+					bestAction = iterativeDeepeningSearch(root.state, turnStart, ponderedDepth, ponderedAction);
+				} else if (ponderedAction != null && ponderedDepth >= numPlys) {
+					bestAction = ponderedAction;
+				} else {
+					searchDepth = numPlys;
+					helpers = startLazyHelpers(root.state);
+					bestAction = searchRoot(root.state);
+				}
+			} finally {
+				searchStopped = true;
+				for (ForkJoinTask<?> helper : helpers) {
+					helper.join();
+				}
+			}
+			rootHint = null;
+			finishTurn();
+			if (reuseTree && bestAction != null) {
+				rememberPrincipalVariation(position, bestAction);
+			}
+			if (ponderPool != null && bestAction != null) {
+				startPondering(root.state, bestAction);
+			}
 		} catch (IOException e) {
-			System.out.println("�OException thrown");
+			System.err.println("Could not read the state of the game: " + e);
 		}
 
-        return bestChild.action;
+        return bestAction;
+    }
+
+    /**
+     * Searches the root one ply deeper each iteration until the turn's time
+     * limit runs out. An iteration cut short by the deadline is thrown away, so
+     * the returned child always comes from the deepest fully completed search.
+     * The first iteration is never cut short so there is always a move to play,
+     * unless pondering or the previous turn's search already found one, in
+     * which case the search carries on from one ply deeper than they got.
+     *
+     * SEPIA's damage varies from hit to hit, so the units often end up where
+     * the previous search expected but with different HP. The expected move
+     * is then only tried first at the root (rootHint) and the search starts
+     * over.
+     *
+     * @param root The current state of the game
+     * @param turnStart The time in milliseconds the turn started, which the time limit counts from
+     * @param completedDepth The deepest search of the root already completed, 0 if none
+     * @param completedAction The best joint action of that search, null if none
+     * @return The best joint action found by the deepest completed iteration
+     */
+    private Map<Integer, Action> iterativeDeepeningSearch(GameState root, long turnStart, int completedDepth, Map<Integer, Action> completedAction)
+    {
+    	Map<Integer, Action> bestAction = completedAction;
+    	if (bestAction != null) {
+    		deadline = turnStart + timeLimit;
+    	} else {
+    		completedDepth = 0;
+    	}
+    	for (searchDepth = completedDepth + 1; searchDepth <= MAX_SEARCH_DEPTH; searchDepth++) {
+    		Map<Integer, Action> result = searchRoot(root);
+    		if (searchStopped) {
+    			break;
+    		}
+    		bestAction = result;
+    		deadline = turnStart + timeLimit;
+    		if (System.currentTimeMillis() >= deadline) {
+    			break;
+    		}
+    	}
+    	return bestAction;
+    }
+
+    /**
+     * Searches the root to searchDepth plies, through an aspiration window
+     * when one is configured.
+     *
+     * @param root The current state of the game
+     * @return The best joint action at the root, or null if it has none
+     */
+    private Map<Integer, Action> searchRoot(GameState root)
+    {
+    	if (aspirationWindow > 0) {
+    		return aspirationSearch(root);
+    	}
+    	SearchContext context = new SearchContext(searchDepth, 0, null);
+    	alphaBetaValue(root, 0, true, Integer.MIN_VALUE, Integer.MAX_VALUE, context);
+    	return context.bestRootAction;
+    }
+
+    /**
+     * Searches the root with a narrow window around the last root score, on
+     * the grounds that the score rarely moves much between one search and
+     * the next, and a narrow window cuts off far more of the tree. If the
+     * score falls outside the window the search is repeated with that side
+     * of the window widened, doubling the widening each time.
+     *
+     * The first search of an episode has no score to go on and uses the full
+     * window.
+     *
+     * @param root The current state of the game
+     * @return The best joint action at the root, or null if it has none
+     */
+    private Map<Integer, Action> aspirationSearch(GameState root)
+    {
+    	long window = aspirationWindow;
+    	long alpha = hasLastRootScore ? (long) lastRootScore - window : Integer.MIN_VALUE;
+    	long beta = hasLastRootScore ? (long) lastRootScore + window : Integer.MAX_VALUE;
+    	while (true) {
+    		alpha = Math.max(alpha, Integer.MIN_VALUE);
+    		beta = Math.min(beta, Integer.MAX_VALUE);
+    		SearchContext context = new SearchContext(searchDepth, 0, null);
+    		int score = alphaBetaValue(root, 0, true, (int) alpha, (int) beta, context);
+    		if (searchStopped) {
+    			return null;
+    		}
+    		window *= 2;
+    		if (score <= alpha && alpha > Integer.MIN_VALUE) {
+    			alpha = score - window;
+    		} else if (score >= beta && beta < Integer.MAX_VALUE) {
+    			beta = score + window;
+    		} else {
+    			lastRootScore = score;
+    			hasLastRootScore = true;
+    			return context.bestRootAction;
+    		}
+    	}
+    }
+
+    /**
+     * Starts the Lazy SMP helpers for this turn on the search pool. Each
+     * helper searches its own copy of the root so no GameState is shared
+     * between threads, deepening iteratively until the main search sets
+     * searchStopped. Odd helpers start one ply deeper than even ones so the
+     * helpers are not all working on the same iteration.
+     *
+     * @param root The state the main search is about to search
+     * @return The running helpers, to be joined once searchStopped is set
+     */
+    private List<ForkJoinTask<?>> startLazyHelpers(GameState root)
+    {
+    	List<ForkJoinTask<?>> helpers = new ArrayList<>();
+    	final int maxDepth = timeLimit > 0 ? MAX_SEARCH_DEPTH : numPlys;
+    	for (int i = 0; i < lazyHelpers; i++) {
+    		final GameState helperRoot = new GameState(root);
+    		final int firstDepth = 1 + i % 2;
+    		final Random random = new Random(i + 1);
+    		helpers.add(searchPool.submit(new Runnable() {
+    			@Override
+    			public void run() {
+    				for (int depth = firstDepth; depth <= maxDepth && !searchStopped; depth++) {
+    					alphaBetaValue(helperRoot, 0, true, Integer.MIN_VALUE, Integer.MAX_VALUE,
+    							new SearchContext(depth, 0, random));
+    				}
+    			}
+    		}));
+    	}
+    	return helpers;
+    }
+
+    /**
+     * Remembers the positions where we are to move along the principal
+     * variation of this turn's search, with the joint action the search
+     * expects us to play in each. The variation is followed through the
+     * transposition table's best moves, as far as the table still has them.
+     *
+     * These positions are where the next turns are expected to start. When
+     * one is reached exactly its table entry is found again by middleStep
+     * anyway; they are kept so a position reached with only the HP differing
+     * can still have its expected move searched first.
+     *
+     * @param root The position this turn's search started from
+     * @param action The joint action being played
+     */
+    private void rememberPrincipalVariation(PackedGameState root, Map<Integer, Action> action)
+    {
+    	expectedPositions.clear();
+    	PackedGameState position = root;
+    	for (int ply = 1; ply <= searchDepth && action != null; ply++) {
+    		position = position.apply(action);
+    		action = transpositionTable == null ? null
+    				: transpositionTable.getMove(position.getCanonicalKey(), position.getZobristKey());
+    		if (position.isMax() && action != null) {
+    			expectedPositions.put(position, action);
+    		}
+    	}
+    }
+
+    /**
+     * Starts searching, in the background, the position expected at the start
+     * of the next turn: the root after our move and the archers' best reply
+     * to it. The reply is found by a search of the position after our move,
+     * one ply shallower than the search that chose the move, which mostly
+     * hits the transposition table. The pondering then deepens iteratively
+     * until stopPondering() is called, filling the transposition table and
+     * remembering the best joint action of its deepest completed iteration.
+     *
+     * @param root The state our move was chosen in
+     * @param action The joint action we are playing
+     */
+    private void startPondering(GameState root, final Map<Integer, Action> action)
+    {
+    	final GameState afterMove = root.createChild(action).state;
+    	final int replyDepth = Math.max(1, searchDepth - 1);
+    	final int maxDepth = timeLimit > 0 ? MAX_SEARCH_DEPTH : numPlys;
+    	searchStopped = false;
+    	deadline = 0;
+    	ponderPosition = null;
+    	ponderAction = null;
+    	ponderDepth = 0;
+    	ponderTask = ponderPool.submit(new Runnable() {
+    		@Override
+    		public void run() {
+    			SearchContext replySearch = new SearchContext(replyDepth, 0, null);
+    			alphaBetaValue(afterMove, 0, false, Integer.MIN_VALUE, Integer.MAX_VALUE, replySearch);
+    			if (searchStopped || replySearch.bestRootAction == null) {
+    				return;
+    			}
+    			GameState predicted = afterMove.createChild(replySearch.bestRootAction).state;
+    			predicted.setIsMax(true);
+    			ponderPosition = predicted.pack();
+    			for (int depth = 1; depth <= maxDepth && !searchStopped; depth++) {
+    				SearchContext context = new SearchContext(depth, 0, null);
+    				alphaBetaValue(predicted, 0, true, Integer.MIN_VALUE, Integer.MAX_VALUE, context);
+    				if (!searchStopped && context.bestRootAction != null) {
+    					ponderAction = context.bestRootAction;
+    					ponderDepth = depth;
+    				}
+    			}
+    		}
+    	});
+    }
+
+    /**
+     * Stops the background search started by startPondering() and waits for
+     * it to finish, leaving its results in ponderPosition, ponderAction and
+     * ponderDepth.
+     */
+    private void stopPondering()
+    {
+    	if (ponderTask != null) {
+    		searchStopped = true;
+    		ponderTask.join();
+    		ponderTask = null;
+    	}
+    }
+
+    /**
+     * Adds a listener to be told the search statistics after every turn and
+     * episode. Only called when the agent was created with stats=true or
+     * stats=print.
+     *
+     * @param listener The listener to add
+     */
+    public void addSearchListener(SearchListener listener)
+    {
+    	searchListeners.add(listener);
+    }
+
+    /**
+     * Publishes statistics for the episode as a JMX MBean named after the
+     * agent and the statistics' scope. terminalStep() takes it down again.
+     *
+     * @param scope What the statistics cover, turn or episode
+     * @param statistics The statistics to publish
+     */
+    private void registerStatistics(String scope, SearchStatistics statistics)
+    {
+    	try {
+    		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    		ObjectName name = statisticsName(scope);
+    		if (!server.isRegistered(name)) {
+    			server.registerMBean(statistics, name);
+    		}
+    	} catch (JMException e) {
+    		System.err.println("Could not publish the search statistics: " + e.getMessage());
+    	}
+    }
+
+    /**
+     * Takes down the MBean published by registerStatistics(), if it is there
+     *
+     * @param scope What the statistics cover, turn or episode
+     */
+    private void unregisterStatistics(String scope)
+    {
+    	try {
+    		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    		ObjectName name = statisticsName(scope);
+    		if (server.isRegistered(name)) {
+    			server.unregisterMBean(name);
+    		}
+    	} catch (JMException e) {
+    		System.err.println("Could not take down the search statistics: " + e.getMessage());
+    	}
+    }
+
+    private ObjectName statisticsName(String scope) throws MalformedObjectNameException
+    {
+    	return new ObjectName("edu.cwru.sepia.agent.minimax:type=SearchStatistics,player="
+    			+ getPlayerNumber() + ",agent=" + agentId + ",scope=" + scope);
+    }
+
+    /**
+     * Moves this turn's statistics into the last turn's and the episode's and
+     * tells the listeners. Anything recorded after this, such as pondering,
+     * counts towards the next turn.
+     */
+    private void finishTurn()
+    {
+    	turn++;
+    	if (turnStatistics == null) {
+    		return;
+    	}
+    	lastTurnStatistics.reset();
+    	lastTurnStatistics.add(turnStatistics);
+    	episodeStatistics.add(turnStatistics);
+    	turnStatistics.reset();
+    	for (SearchListener listener : searchListeners) {
+    		listener.turnFinished(turn, lastTurnStatistics);
+    	}
+    }
+
+    /**
+     * Checks the deadline of the current iteration, remembering once it has passed.
+     *
+     * @return True if the current iteration should stop searching
+     */
+    private boolean isTimeUp()
+    {
+    	if (!searchStopped && deadline > 0 && System.currentTimeMillis() >= deadline) {
+    		searchStopped = true;
+    	}
+    	return searchStopped;
     }
 
     @Override
     public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+    	hasLastRootScore = false;
+    	stopPondering();
+    	ponderPosition = null;
+    	expectedPositions.clear();
+    	if (evaluationCache != null) {
+    		evaluationCache.clear();
+    	}
+    	if (ponderPool != null && ponderPool != searchPool) {
+    		ponderPool.shutdown();
+    	}
+    	ponderPool = null;
+    	if (searchPool != null) {
+    		searchPool.shutdown();
+    		searchPool = null;
+    	}
+    	if (episodeStatistics != null) {
+    		episodeStatistics.add(turnStatistics);
+    		turnStatistics.reset();
+    		for (SearchListener listener : searchListeners) {
+    			listener.episodeFinished(turn, episodeStatistics);
+    		}
+    		unregisterStatistics("turn");
+    		unregisterStatistics("episode");
+    	}
 
     }
 
+    /**
+     * Starts the search and ponder threads if the episode has not started
+     * them yet. They are shut down again by terminalStep(), so an agent
+     * created for every episode does not leave its threads behind.
+     */
+    private void startPools()
+    {
+    	if (threads > 1 && searchPool == null) {
+    		searchPool = new ForkJoinPool(threads);
+    	}
+    	if (ponder && ponderPool == null) {
+    		ponderPool = searchPool != null ? searchPool : new ForkJoinPool(1);
+    	}
+    }
+
     @Override
     public void savePlayerData(OutputStream os) {
-
+    	if (openingBook == null) {
+    		return;
+    	}
+    	try {
+    		openingBook.write(os);
+    	} catch (IOException e) {
+    		System.err.println("Could not save the opening book: " + e.getMessage());
+    	}
     }
 
     @Override
     public void loadPlayerData(InputStream is) {
-
+    	if (openingBook == null) {
+    		return;
+    	}
+    	try {
+    		openingBook.read(is);
+    	} catch (IOException e) {
+    		System.err.println("Could not load the opening book: " + e.getMessage());
+    	}
     }
 
     /**
@@ -76,44 +799,554 @@ public class MinimaxAlphaBeta extends Agent {
      * Try to keep the logic in this function as abstract as possible (i.e. move as much SEPIA specific
      * code into other functions and methods)
      *
+     * This is a wrapper around alphaBetaValue, which carries the window as
+     * plain int scores and only remembers the best joint action at the root.
+     * The utilities of alpha and beta give the initial search window, and the
+     * best child is only created once the search is over. The search scores
+     * states numPlys plies from the root, whatever depth the agent's own
+     * turns last searched to, and stops any pondering first so the stop flag
+     * it clears is not raised again under it.
+     *
      * @param node The action and state to search from
-     * @param depth The remaining number of plies under this node
+     * @param depth The number of plies between the root and this node
      * @param isMax if the search is on the max node
      * @param alpha The current best node for the maximizing node from this node to the root
      * @param beta The current best node for the minimizing node from this node to the root
-     * @return The best child of this node with updated values
+     * @return The best child of this node, or the node itself if it is a leaf
      */
     public GameStateChild alphaBetaSearch(GameStateChild node, int depth, boolean isMax, GameStateChild alpha, GameStateChild beta)
-    {    	
-    	node.state.setDepth(depth);
-    	if (depth == numPlys || node.state.isTerminal()){
+    {
+    	stopPondering();
+    	startPools();
+    	searchStopped = false;
+    	deadline = 0;
+    	SearchContext context = new SearchContext(numPlys, depth, null);
+    	alphaBetaValue(node.state, depth, isMax, alpha.state.getUtility(), beta.state.getUtility(), context);
+    	if (context.bestRootAction == null){
     		return node;
     	}
-    	if (isMax){
-    		node.state.setIsMax(true);
+    	return node.state.createChild(context.bestRootAction);
+    }
+
+    /**
+     * The settings of one search from a root, shared by every state searched
+     * under it. The main search and each Lazy SMP helper have their own.
+     */
+    private static class SearchContext {
+
+    	//Depth at which states are scored by their utility
+    	private final int depthLimit;
+    	//Depth of the state the search started from, and its best joint action
+    	private final int rootDepth;
+    	private Map<Integer, Action> bestRootAction;
+    	//Shuffles the move order of helper searches, null for the main search
+    	private final Random perturbation;
+    	//The same search one ply shallower, for late move reductions
+    	private SearchContext reduced;
+
+    	SearchContext(int depthLimit, int rootDepth, Random perturbation) {
+    		this.depthLimit = depthLimit;
+    		this.rootDepth = rootDepth;
+    		this.perturbation = perturbation;
+    	}
+
+    	SearchContext reduced() {
+    		if (reduced == null) {
+    			reduced = new SearchContext(depthLimit - 1, rootDepth, perturbation);
+    		}
+    		return reduced;
+    	}
+    }
+
+    /**
+     * Scores a state by alpha beta search. Scores are backed up from the
+     * utilities of the states at the context's depth limit, and when a
+     * transposition table is in use each searched state is stored in it so
+     * that reaching the same units in the same places through a different
+     * order of moves does not search it again.
+     *
+     * The best joint action of the state the search started from is left in
+     * the context's bestRootAction. The root is never answered from the
+     * transposition table since that would leave no move to play.
+     *
+     * @param state The state to score
+     * @param depth The number of plies between the root and this state
+     * @param isMax if the maximizing player is to move in this state
+     * @param alpha The score the maximizing player is already assured of
+     * @param beta The score the minimizing player is already assured of
+     * @param context The settings of the search this state is part of
+     * @return The score of the state, or a bound on it if it lies outside (alpha, beta)
+     */
+    private int alphaBetaValue(GameState state, int depth, boolean isMax, int alpha, int beta, SearchContext context)
+    {
+    	state.setDepth(depth);
+    	if (turnStatistics != null){
+    		turnStatistics.recordNode(depth - context.rootDepth);
+    	}
+    	//The root still needs a move, which the tablebase scores one ply down
+    	if (tablebase != null && depth != context.rootDepth){
+    		int score = tablebase.probe(state, isMax);
+    		if (score != EndgameTablebase.NO_RESULT){
+    			return score;
+    		}
+    	}
+    	if (state.isTerminal()){
+    		return state.getUtility();
+    	}
+    	if (depth == context.depthLimit){
+    		return quiescencePlies > 0
+    				? quiescenceValue(state, depth, isMax, alpha, beta, quiescencePlies, context)
+    				: state.getUtility();
+    	}
+    	if (isTimeUp()){
+    		return 0;
+    	}
+    	state.setIsMax(isMax);
+
+    	int remainingDepth = context.depthLimit - depth;
+    	long key = state.getCanonicalKey();
+    	long moveKey = state.getZobristKey();
+    	Map<Integer, Action> tableMove = null;
+    	if (transpositionTable != null){
+    		long entry = transpositionTable.probe(key);
+    		if (turnStatistics != null){
+    			turnStatistics.recordTableProbe(entry != 0);
+    		}
+    		if (entry != 0){
+    			tableMove = transpositionTable.getMove(key, moveKey);
+    			if (depth != context.rootDepth && TranspositionTable.depthOf(entry) >= remainingDepth){
+    				int score = TranspositionTable.scoreOf(entry);
+    				int bound = TranspositionTable.boundOf(entry);
+    				if (bound == TranspositionTable.EXACT){
+    					return score;
+    				} else if (bound == TranspositionTable.LOWER_BOUND){
+    					alpha = Math.max(alpha, score);
+    				} else {
+    					beta = Math.min(beta, score);
+    				}
+    				if (alpha >= beta){
+    					return score;
+    				}
+    			}
+    		}
+    	}
+
+    	if (tableMove == null && depth == context.rootDepth && context.perturbation == null){
+    		tableMove = rootHint;
+    	}
+    	List<Map<Integer, Action>> jointActions = state.getJointActions();
+    	if (jointActions.isEmpty()){
+    		return state.getUtility();
+    	}
+    	if (turnStatistics != null){
+    		turnStatistics.recordExpansion(depth - context.rootDepth);
+    	}
+    	moveOrdering.orderActions(jointActions, depth);
+    	searchFirst(jointActions, tableMove);
+    	if (context.perturbation != null){
+    		perturb(jointActions, context.perturbation);
+    	}
+
+    	int alphaAtStart = alpha;
+    	int betaAtStart = beta;
+    	int best = isMax ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+    	Map<Integer, Action> bestAction = null;
+    	int bestIndex = -1;
+    	boolean split = (parallelMode == ParallelMode.ROOT && depth == context.rootDepth)
+    			|| (parallelMode == ParallelMode.YBW && remainingDepth >= minSplitDepth);
+    	if (searchPool != null && split && jointActions.size() > 1){
+    		SiblingSearch bestSearch = parallelSearch(state, jointActions, depth, isMax, alpha, beta, parallelMode == ParallelMode.YBW, context);
+    		if (searchStopped){
+    			return 0;
+    		}
+    		if (bestSearch != null){
+    			best = bestSearch.value;
+    			bestAction = bestSearch.jointAction;
+    			bestIndex = jointActions.indexOf(bestAction);
+    		}
     	} else {
-    		node.state.setIsMax(false);
+    		boolean futile = futilityMargin > 0 && remainingDepth == 1
+    				&& (isMax ? state.getUtility() + futilityMargin <= alpha : state.getUtility() - futilityMargin >= beta);
+    		//Canonical keys of the children searched so far, to skip mirror
+    		//images of them, null when no two children can be mirrored
+    		long[] childKeys = state.hasMirroredChildren() ? new long[jointActions.size()] : null;
+    		int childCount = 0;
+    		int index = -1;
+    		for (Map<Integer, Action> jointAction : jointActions){
+    			index++;
+    			boolean quiet = isQuiet(jointAction);
+    			if (futile && bestAction != null && quiet){
+    				if (turnStatistics != null){
+    					turnStatistics.recordFutilityPrune();
+    				}
+    				continue;
+    			}
+    			GameState childState;
+    			if (makeUnmake){
+    				state.makeMove(jointAction);
+    				childState = state;
+    			} else {
+    				childState = state.createChild(jointAction).state;
+    			}
+    			if (childKeys != null){
+    				long childKey = childState.getCanonicalKey();
+    				if (contains(childKeys, childCount, childKey)){
+    					if (makeUnmake){
+    						state.unmakeMove();
+    					}
+    					if (turnStatistics != null){
+    						turnStatistics.recordSymmetryPrune();
+    					}
+    					continue;
+    				}
+    				childKeys[childCount++] = childKey;
+    			}
+    			int v = 0;
+    			//A reduced child that fails to beat the best child so far is
+    			//settled, any other is searched again at full depth
+    			boolean settled = false;
+    			if (lateMoveReductions && quiet && index >= LMR_FULL_DEPTH_CHILDREN && remainingDepth >= LMR_MIN_DEPTH
+    					&& !jointAction.equals(tableMove)){
+    				v = isMax ? alphaBetaValue(childState, depth+1, !isMax, alpha, alpha + 1, context.reduced())
+    						: alphaBetaValue(childState, depth+1, !isMax, beta - 1, beta, context.reduced());
+    				settled = isMax ? v <= alpha : v >= beta;
+    				if (turnStatistics != null){
+    					turnStatistics.recordReduction(!settled);
+    				}
+    			}
+    			if (settled || searchStopped){
+    				//v already holds the reduced search's bound
+    			} else if (principalVariationSearch && bestAction != null){
+    				v = nullWindowValue(childState, depth+1, !isMax, alpha, beta, context);
+    			} else {
+    				v = alphaBetaValue(childState, depth+1, !isMax, alpha, beta, context);
+    			}
+    			if (makeUnmake){
+    				state.unmakeMove();
+    			}
+    			if (searchStopped){
+    				return 0;
+    			}
+    			if (bestAction == null || (isMax && v > best) || (!isMax && v < best)){
+    				best = v;
+    				bestAction = jointAction;
+    				bestIndex = index;
+    			}
+    			if (isMax){
+    				alpha = Math.max(alpha, v);
+    			} else {
+    				beta = Math.min(beta, v);
+    			}
+    			if (alpha >= beta){
+    				break;
+    			}
+    		}
     	}
-    	List<GameStateChild> children = orderChildrenWithHeuristics(node.state.getChildren());
-    	
-    	for (GameStateChild child : children){
-    		int v = alphaBetaSearch(child, depth+1, !isMax, alpha, beta).state.getUtility();
-    		if (isMax && v > alpha.state.getUtility()){
-    			alpha = child;
-    		} else if (!isMax && v < beta.state.getUtility()){
-    			beta = child;
+
+    	if (depth == context.rootDepth){
+    		context.bestRootAction = bestAction;
+    	}
+    	if (bestAction != null && (isMax ? best >= betaAtStart : best <= alphaAtStart)){
+    		moveOrdering.recordCutoff(bestAction, depth, remainingDepth);
+    		if (turnStatistics != null){
+    			turnStatistics.recordCutoff(bestIndex);
     		}
-    		if (alpha.state.getUtility() >= beta.state.getUtility()){
-    			return child;
+    	}
+    	if (transpositionTable != null){
+    		int bound = TranspositionTable.EXACT;
+    		if (best <= alphaAtStart){
+    			bound = TranspositionTable.UPPER_BOUND;
+    		} else if (best >= betaAtStart){
+    			bound = TranspositionTable.LOWER_BOUND;
     		}
+    		transpositionTable.store(key, moveKey, remainingDepth, best, bound, bestAction);
     	}
-    	
-    	if (isMax){
-    		return alpha;
+    	return best;
+    }
+
+    /**
+     * Scores a state at the depth limit without stopping in the middle of an
+     * exchange of attacks. The side to move may either stand pat, taking the
+     * state's utility as it is, or attack with every unit that has a living
+     * enemy in range, and the search goes on through attacks only until
+     * neither side can attack or the plies run out. Standing pat stands in for
+     * the moves that are not searched, since a side is never forced to attack.
+     *
+     * Quiescence states are not stored in the transposition table, as their
+     * scores do not come from a full-width search.
+     *
+     * @param state The state to score
+     * @param depth The number of plies between the root and this state
+     * @param isMax if the maximizing player is to move in this state
+     * @param alpha The score the maximizing player is already assured of
+     * @param beta The score the minimizing player is already assured of
+     * @param pliesLeft The plies of attacks that may still be searched
+     * @param context The settings of the search this state is part of
+     * @return The score of the state, or a bound on it if it lies outside (alpha, beta)
+     */
+    private int quiescenceValue(GameState state, int depth, boolean isMax, int alpha, int beta, int pliesLeft, SearchContext context)
+    {
+    	int best = state.getUtility();
+    	if (pliesLeft == 0 || state.isTerminal() || isTimeUp()){
+    		return best;
+    	}
+    	if (isMax ? best >= beta : best <= alpha){
+    		return best;
     	}
-    	return beta;
+    	state.setIsMax(isMax);
+    	List<Map<Integer, Action>> attacks = state.getAttackActions();
+    	for (Map<Integer, Action> attack : attacks){
+    		GameState childState;
+    		if (makeUnmake){
+    			state.makeMove(attack);
+    			childState = state;
+    		} else {
+    			childState = state.createChild(attack).state;
+    		}
+    		if (turnStatistics != null){
+    			turnStatistics.recordNode(depth + 1 - context.rootDepth);
+    		}
+    		int v = quiescenceValue(childState, depth+1, !isMax, isMax ? Math.max(alpha, best) : alpha,
+    				isMax ? beta : Math.min(beta, best), pliesLeft - 1, context);
+    		if (makeUnmake){
+    			state.unmakeMove();
+    		}
+    		if (isMax ? v > best : v < best){
+    			best = v;
+    		}
+    		if (isMax ? best >= beta : best <= alpha){
+    			break;
+    		}
+    	}
+    	return best;
     }
-    
+
+    /**
+     * @param jointAction A joint action
+     * @return True if no unit attacks in it
+     */
+    private static boolean isQuiet(Map<Integer, Action> jointAction)
+    {
+    	for (Action action : jointAction.values()){
+    		if (action.getType() == ActionType.COMPOUNDATTACK){
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+    /**
+     * @param keys Keys with count of them filled in
+     * @return True if key is one of the first count keys
+     */
+    private static boolean contains(long[] keys, int count, long key)
+    {
+    	for (int i = 0; i < count; i++){
+    		if (keys[i] == key){
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+    /**
+     * Scores a younger child for principal variation search. The child is
+     * first searched with a null window that only tells whether it beats the
+     * best child so far, which is much cheaper than a full search since most
+     * children behind a well ordered first child do not. Only a child that
+     * does beat it is searched again with the full window to get its score.
+     *
+     * @param state The state of the child to score
+     * @param depth The number of plies between the root and the child
+     * @param isMax if the maximizing player is to move in the child
+     * @param alpha The score the maximizing player is already assured of
+     * @param beta The score the minimizing player is already assured of
+     * @param context The settings of the search this state is part of
+     * @return The score of the child, or a bound on it if it lies outside (alpha, beta)
+     */
+    private int nullWindowValue(GameState state, int depth, boolean isMax, int alpha, int beta, SearchContext context)
+    {
+    	//The parent of the child is the opposite player
+    	if (!isMax){
+    		int v = alphaBetaValue(state, depth, isMax, alpha, alpha + 1, context);
+    		if (v > alpha && v < beta && !searchStopped){
+    			v = alphaBetaValue(state, depth, isMax, alpha, beta, context);
+    		}
+    		return v;
+    	}
+    	int v = alphaBetaValue(state, depth, isMax, beta - 1, beta, context);
+    	if (v < beta && v > alpha && !searchStopped){
+    		v = alphaBetaValue(state, depth, isMax, alpha, beta, context);
+    	}
+    	return v;
+    }
+
+    /**
+     * Searches the children of a state concurrently on the search pool. The
+     * moving side's bound is shared between the workers, so a child that
+     * starts after a good sibling has finished is searched with the narrower
+     * window and still gets cutoffs, and once a sibling fails high the
+     * children that have not started yet are skipped.
+     *
+     * With eldestFirst the first child is searched on the calling thread
+     * before any sibling is started (Young Brothers Wait), so the siblings
+     * start from the bound the best ordered child established.
+     *
+     * A child that scores no better than the bound it was searched with only
+     * has an upper bound (a lower bound for the minimizing player) for a
+     * score, so the best child is chosen among those that beat their bound,
+     * falling back on the best bound only when every child failed.
+     *
+     * @param state The state whose children to search
+     * @param jointActions The ordered joint actions leading to the children
+     * @param depth The depth of the state
+     * @param isMax if the maximizing player is to move in the state
+     * @param alpha The score the maximizing player is already assured of
+     * @param beta The score the minimizing player is already assured of
+     * @param eldestFirst if the first child is searched before the others start
+     * @param context The settings of the search the state is part of
+     * @return The search of the best child, or null if no child was searched
+     */
+    private SiblingSearch parallelSearch(GameState state, List<Map<Integer, Action>> jointActions, int depth, boolean isMax, int alpha, int beta, boolean eldestFirst, SearchContext context)
+    {
+    	AtomicInteger sharedBound = new AtomicInteger(isMax ? alpha : beta);
+    	List<SiblingSearch> searches = new ArrayList<>();
+    	for (Map<Integer, Action> jointAction : jointActions){
+    		searches.add(new SiblingSearch(this, state, jointAction, depth + 1, isMax, alpha, beta, sharedBound, context));
+    	}
+    	List<SiblingSearch> youngerBrothers = searches;
+    	if (eldestFirst){
+    		searches.get(0).compute();
+    		youngerBrothers = searches.subList(1, searches.size());
+    	}
+    	if (!searchStopped && !youngerBrothers.isEmpty()){
+    		if (ForkJoinTask.inForkJoinPool()){
+    			ForkJoinTask.invokeAll(youngerBrothers);
+    		} else {
+    			for (SiblingSearch search : youngerBrothers){
+    				searchPool.execute(search);
+    			}
+    			for (SiblingSearch search : youngerBrothers){
+    				search.join();
+    			}
+    		}
+    	}
+
+    	SiblingSearch best = null;
+    	for (SiblingSearch search : searches){
+    		if (!search.searched){
+    			continue;
+    		}
+    		if (best == null
+    				|| (search.beatBound() && !best.beatBound())
+    				|| (search.beatBound() == best.beatBound() && (isMax ? search.value > best.value : search.value < best.value))){
+    			best = search;
+    		}
+    	}
+    	return best;
+    }
+
+    /**
+     * Searches one child of a state as part of parallelSearch. The child is
+     * only created once the search starts, so skipped siblings cost nothing.
+     */
+    private static class SiblingSearch extends RecursiveAction {
+
+    	private static final long serialVersionUID = 1L;
+
+    	//The agent whose search the child is part of
+    	private final MinimaxAlphaBeta search;
+    	private final GameState parent;
+    	private final Map<Integer, Action> jointAction;
+    	private GameStateChild child;
+    	private final int depth;
+    	private final boolean parentIsMax;
+    	private final int alpha, beta;
+    	private final AtomicInteger sharedBound;
+    	private final SearchContext context;
+
+    	//The score of the child and the parent's bound it was searched against
+    	private int value;
+    	private int bound;
+    	private boolean searched;
+
+    	SiblingSearch(MinimaxAlphaBeta search, GameState parent, Map<Integer, Action> jointAction, int depth, boolean parentIsMax, int alpha, int beta, AtomicInteger sharedBound, SearchContext context) {
+    		this.search = search;
+    		this.parent = parent;
+    		this.jointAction = jointAction;
+    		this.depth = depth;
+    		this.parentIsMax = parentIsMax;
+    		this.alpha = alpha;
+    		this.beta = beta;
+    		this.sharedBound = sharedBound;
+    		this.context = context;
+    	}
+
+    	@Override
+    	protected void compute() {
+    		bound = sharedBound.get();
+    		int a = parentIsMax ? bound : alpha;
+    		int b = parentIsMax ? beta : bound;
+    		if (a >= b){
+    			return;
+    		}
+    		child = parent.createChild(jointAction);
+    		value = search.alphaBetaValue(child.state, depth, !parentIsMax, a, b, context);
+    		if (search.searchStopped){
+    			return;
+    		}
+    		searched = true;
+    		int current;
+    		do {
+    			current = sharedBound.get();
+    			if (parentIsMax ? value <= current : value >= current){
+    				break;
+    			}
+    		} while (!sharedBound.compareAndSet(current, value));
+    	}
+
+    	boolean beatBound() {
+    		return parentIsMax ? value > bound : value < bound;
+    	}
+    }
+
+    /**
+     * Slightly reorders the children of a helper search by randomly swapping
+     * neighbours behind the first child, so helpers reach the same states in
+     * a different order than the main search and fill the transposition
+     * table ahead of it.
+     *
+     * @param jointActions The ordered joint actions leading to the children
+     * @param random The helper's source of randomness
+     */
+    private void perturb(List<Map<Integer, Action>> jointActions, Random random)
+    {
+    	for (int i = 1; i < jointActions.size() - 1; i++){
+    		if (random.nextBoolean()){
+    			Collections.swap(jointActions, i, i + 1);
+    		}
+    	}
+    }
+
+    /**
+     * Moves the given joint action to the front of the list.
+     *
+     * @param jointActions The joint actions to reorder
+     * @param action The joint action to search first, may be null
+     */
+    private void searchFirst(List<Map<Integer, Action>> jointActions, Map<Integer, Action> action)
+    {
+    	if (action == null){
+    		return;
+    	}
+    	for (int i = 1; i < jointActions.size(); i++){
+    		if (action.equals(jointActions.get(i))){
+    			jointActions.add(0, jointActions.remove(i));
+    			return;
+    		}
+    	}
+    }
+
     /**
      * You will implement this.
      *
@@ -124,22 +1357,34 @@ public class MinimaxAlphaBeta extends Agent {
      *
      * Include a good comment about what your heuristics are and why you chose them.
      *
+     * Children are ordered by their joint actions alone, see MoveOrdering:
+     * joint actions with more attacks first, then the killer moves of this
+     * depth, then by the history of cutoffs caused by each unit's action.
+     * Ordering used to sort the children by utility, which meant evaluating
+     * every child (an A* search per footman on the obstacle maps) before
+     * searching any of them, and knew nothing about which moves had actually
+     * caused cutoffs.
+     *
      * @param children
      * @return The list of children sorted by your heuristic.
      */
     public List<GameStateChild> orderChildrenWithHeuristics(List<GameStateChild> children)
     {
-    	Map<GameState, Map<Integer, Action>> stateChildMap = new HashMap<>();
-    	List<GameState> stateList = new ArrayList<>();
-    	List<GameStateChild> childList = new ArrayList<>();
-        for (GameStateChild child : children){
-        	stateChildMap.put(child.state, child.action);
-        	stateList.add(child.state);
-        }
-        Collections.sort(stateList);
-        for (GameState state : stateList){
-        	childList.add(new GameStateChild(stateChildMap.get(state), state));
-        }
+    	return orderChildrenWithHeuristics(children, -1);
+    }
+
+    /**
+     * Orders children as orderChildrenWithHeuristics(List) does, also
+     * ranking the killer moves of the given depth.
+     *
+     * @param children
+     * @param depth The depth of the children's parent, or -1 to ignore killer moves
+     * @return The list of children sorted by your heuristic.
+     */
+    public List<GameStateChild> orderChildrenWithHeuristics(List<GameStateChild> children, int depth)
+    {
+    	List<GameStateChild> childList = new ArrayList<>(children);
+    	moveOrdering.order(childList, depth);
     	return childList;
     }
     
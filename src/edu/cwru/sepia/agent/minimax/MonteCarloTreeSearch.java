@@ -0,0 +1,435 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.util.Direction;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Plays the footmen by Monte Carlo tree search (UCT) instead of alpha beta,
+ * for the obstacle maps where the joint actions are too many for alpha beta
+ * to search deeply.
+ *
+ * Each iteration walks down the tree choosing the child with the best upper
+ * confidence bound, adds one untried child there, plays a quick rollout
+ * from it and backs the rollout's reward up to the root. The tree is built
+ * from GameState.getJointActions() and PackedGameState.apply(), so it
+ * follows the same rules as the alpha beta search. Rollouts are cheap: a footman
+ * attacks an archer in range or steps along the shortest path to the
+ * nearest archer, and an archer attacks a footman in range or stays put.
+ * Shortest paths are breadth first distance maps around the obstacles,
+ * cached by target square for the whole episode.
+ *
+ * A rollout that kills every archer rewards the footmen 1, one that kills
+ * every footman rewards them 0, and any other is scored by how much
+ * getUtility() changed since the root, squashed into (0, 1).
+ *
+ * With more than one thread every thread grows its own tree from the root
+ * (root parallelism) and the joint action visited most over all the trees
+ * is played.
+ */
+public class MonteCarloTreeSearch extends Agent {
+
+    private static final long serialVersionUID = 1L;
+
+    //Utility change that moves the reward of a rollout most of the way to 0 or 1
+    private static final double UTILITY_SCALE = 100;
+
+    private final long turnMillis;
+    private final int threads;
+    private final double exploration;
+    private final int rolloutPlies;
+    //Threads growing the trees, started on the first turn of an episode that
+    //needs them and shut down when the episode ends
+    private ForkJoinPool searchPool;
+    private final Random seeds;
+    private final boolean print;
+    //Distances to each target square around the obstacles, by target square,
+    //for the obstacles of the current episode
+    private final Map<Integer, int[]> distanceMaps = new ConcurrentHashMap<>();
+    private boolean[] blocked;
+    private int turn;
+
+    /**
+     * The first argument is the number of milliseconds to search each turn.
+     * Any further arguments are optional key=value pairs:
+     *
+     * threads=n: grow n trees at once on n threads
+     *
+     * exploration=c: the exploration constant of the upper confidence bound,
+     * 1.41 by default
+     *
+     * rolloutPlies=n: the most plies a rollout plays before it is scored, 20
+     * by default
+     *
+     * seed=n: seed of the random tie breaking and child order
+     *
+     * print=true: write the number of iterations and the visits of the move
+     * played to standard out after every turn
+     */
+    public MonteCarloTreeSearch(int playernum, String[] args)
+    {
+        super(playernum);
+
+        if (args.length < 1)
+        {
+            System.err.println("You must specify the milliseconds to search each turn");
+            System.exit(1);
+        }
+
+        turnMillis = Long.parseLong(args[0]);
+        Map<String, String> options = MinimaxAlphaBeta.parseOptions(args);
+        threads = Integer.parseInt(MinimaxAlphaBeta.getOption(options, "threads", "1"));
+        exploration = Double.parseDouble(MinimaxAlphaBeta.getOption(options, "exploration", "1.41"));
+        rolloutPlies = Integer.parseInt(MinimaxAlphaBeta.getOption(options, "rolloutPlies", "20"));
+        seeds = new Random(Long.parseLong(MinimaxAlphaBeta.getOption(options, "seed", "0")));
+        print = Boolean.parseBoolean(MinimaxAlphaBeta.getOption(options, "print", "false"));
+    }
+
+    @Override
+    public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+        turn = 0;
+        distanceMaps.clear();
+        blocked = new boolean[newstate.getXExtent() * newstate.getYExtent()];
+        for (ResourceView obstacle : newstate.getAllResourceNodes()) {
+            blocked[obstacle.getYPosition() * newstate.getXExtent() + obstacle.getXPosition()] = true;
+        }
+        return middleStep(newstate, statehistory);
+    }
+
+    @Override
+    public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
+        final GameState root = new GameState(newstate);
+        root.setIsMax(true);
+        final long deadline = System.nanoTime() + turnMillis * 1000000L;
+        final double rootUtility = root.getUtility();
+
+        List<Node> trees = new ArrayList<>();
+        if (threads <= 1) {
+            trees.add(grow(root, rootUtility, deadline, new Random(seeds.nextLong())));
+        } else {
+            if (searchPool == null) {
+                searchPool = new ForkJoinPool(threads);
+            }
+            List<ForkJoinTask<Node>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final GameState threadRoot = new GameState(root);
+                threadRoot.setIsMax(true);
+                final Random random = new Random(seeds.nextLong());
+                tasks.add(searchPool.submit(new Callable<Node>() {
+                    @Override
+                    public Node call() {
+                        return grow(threadRoot, rootUtility, deadline, random);
+                    }
+                }));
+            }
+            for (ForkJoinTask<Node> task : tasks) {
+                trees.add(task.join());
+            }
+        }
+
+        Map<Map<Integer, Action>, Integer> visits = new HashMap<>();
+        int iterations = 0;
+        for (Node tree : trees) {
+            iterations += tree.visits;
+            for (Node child : tree.children) {
+                Integer sum = visits.get(child.action);
+                visits.put(child.action, (sum == null ? 0 : sum) + child.visits);
+            }
+        }
+        Map<Integer, Action> bestAction = null;
+        int bestVisits = -1;
+        for (Map.Entry<Map<Integer, Action>, Integer> entry : visits.entrySet()) {
+            if (entry.getValue() > bestVisits) {
+                bestVisits = entry.getValue();
+                bestAction = entry.getKey();
+            }
+        }
+        if (bestAction == null) {
+            List<Map<Integer, Action>> jointActions = root.getJointActions();
+            bestAction = jointActions.isEmpty() ? new HashMap<Integer, Action>() : jointActions.get(0);
+        }
+        turn++;
+        if (print) {
+            System.out.println("Turn " + turn + ": iterations=" + iterations + " visits=" + bestVisits + " action=" + bestAction);
+        }
+        return bestAction;
+    }
+
+    @Override
+    public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+        if (searchPool != null) {
+            searchPool.shutdown();
+            searchPool = null;
+        }
+    }
+
+    @Override
+    public void savePlayerData(OutputStream os) {
+
+    }
+
+    @Override
+    public void loadPlayerData(InputStream is) {
+
+    }
+
+    /**
+     * Grows one tree from the root until the deadline
+     *
+     * @param root The current state of the game, with the footmen to move
+     * @param rootUtility The utility of the root, which rollouts are scored against
+     * @param deadline System.nanoTime() at which to stop
+     * @param random Orders the untried children
+     * @return The root node of the tree
+     */
+    private Node grow(GameState root, double rootUtility, long deadline, Random random)
+    {
+        Node tree = new Node(null, null, root.pack());
+        do {
+            Node node = tree;
+            while (node.untried != null && node.untried.isEmpty() && !node.children.isEmpty()) {
+                node = select(node);
+            }
+            GameState state = node.state.toGameState(root);
+            if (!isOver(state)) {
+                if (node.untried == null) {
+                    node.untried = state.getJointActions();
+                    Collections.shuffle(node.untried, random);
+                }
+                if (!node.untried.isEmpty()) {
+                    Map<Integer, Action> action = node.untried.remove(node.untried.size() - 1);
+                    Node child = new Node(node, action, node.state.apply(action));
+                    node.children.add(child);
+                    node = child;
+                    state = node.state.toGameState(root);
+                }
+            }
+            double reward = rollout(state, rootUtility);
+            for (; node != null; node = node.parent) {
+                node.visits++;
+                node.footmenReward += reward;
+            }
+        } while (System.nanoTime() < deadline);
+        return tree;
+    }
+
+    /**
+     * @return The child with the highest upper confidence bound for the side to move
+     */
+    private Node select(Node node)
+    {
+        double logVisits = Math.log(node.visits);
+        boolean footmenToMove = node.state.isMax();
+        Node best = null;
+        double bestBound = Double.NEGATIVE_INFINITY;
+        for (Node child : node.children) {
+            double mean = child.footmenReward / child.visits;
+            double bound = (footmenToMove ? mean : 1 - mean) + exploration * Math.sqrt(logVisits / child.visits);
+            if (bound > bestBound) {
+                bestBound = bound;
+                best = child;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Plays the rollout policy from a state for at most rolloutPlies plies
+     *
+     * @param state A state of its own, which the rollout plays out in place
+     * @return The footmen's reward for how the rollout ended
+     */
+    private double rollout(GameState state, double rootUtility)
+    {
+        boolean footmenToMove = state.isMax();
+        for (int ply = 0; ply < rolloutPlies && !isOver(state); ply++) {
+            state.applyActions(footmenToMove ? footmenPolicy(state) : archerPolicy(state));
+            footmenToMove = !footmenToMove;
+        }
+        if (!hasLivingUnit(state.archers)) {
+            return 1;
+        }
+        if (!hasLivingUnit(state.footmen)) {
+            return 0;
+        }
+        return 0.5 + 0.5 * Math.tanh((state.getUtility() - rootUtility) / UTILITY_SCALE);
+    }
+
+    /**
+     * Each living footman attacks the weakest archer in range, or else steps
+     * towards the nearest living archer along the shortest path
+     */
+    private Map<Integer, Action> footmenPolicy(GameState state)
+    {
+        Map<Integer, Action> actions = new HashMap<>();
+        List<Integer> taken = new ArrayList<>();
+        for (GameUnit footman : state.footmen) {
+            if (footman.getHP() <= 0) {
+                continue;
+            }
+            GameUnit target = weakestInRange(footman, state.archers, GameState.FOOTMAN_RANGE);
+            if (target != null) {
+                actions.put(footman.getID(), Action.createCompoundAttack(footman.getID(), target.getID()));
+                continue;
+            }
+            int xExtent = state.getXExtent();
+            int bestStep = -1;
+            int bestDistance = Integer.MAX_VALUE;
+            for (GameUnit archer : state.archers) {
+                if (archer.getHP() <= 0) {
+                    continue;
+                }
+                int[] distances = distancesTo(archer.getX(), archer.getY(), xExtent, state.getYExtent());
+                for (Direction direction : state.getValidDirections()) {
+                    int x = footman.getX() + direction.xComponent();
+                    int y = footman.getY() + direction.yComponent();
+                    if (x < 0 || y < 0 || x >= xExtent || y >= state.getYExtent()) {
+                        continue;
+                    }
+                    int cell = y * xExtent + x;
+                    if (distances[cell] < bestDistance && !taken.contains(cell) && !occupied(state, x, y)) {
+                        bestDistance = distances[cell];
+                        bestStep = cell;
+                    }
+                }
+            }
+            if (bestStep >= 0) {
+                taken.add(bestStep);
+                actions.put(footman.getID(), Action.createPrimitiveMove(footman.getID(),
+                        Direction.getDirection(bestStep % xExtent - footman.getX(), bestStep / xExtent - footman.getY())));
+            }
+        }
+        return actions;
+    }
+
+    /**
+     * Each living archer attacks the weakest footman in range and otherwise stays put
+     */
+    private Map<Integer, Action> archerPolicy(GameState state)
+    {
+        Map<Integer, Action> actions = new HashMap<>();
+        for (GameUnit archer : state.archers) {
+            if (archer.getHP() <= 0) {
+                continue;
+            }
+            GameUnit target = weakestInRange(archer, state.footmen, GameState.ARCHER_RANGE);
+            if (target != null) {
+                actions.put(archer.getID(), Action.createCompoundAttack(archer.getID(), target.getID()));
+            }
+        }
+        return actions;
+    }
+
+    private static GameUnit weakestInRange(GameUnit unit, List<GameUnit> enemies, int range)
+    {
+        GameUnit weakest = null;
+        for (GameUnit enemy : enemies) {
+            int distance = Math.abs(unit.getX() - enemy.getX()) + Math.abs(unit.getY() - enemy.getY());
+            if (enemy.getHP() > 0 && distance <= range && (weakest == null || enemy.getHP() < weakest.getHP())) {
+                weakest = enemy;
+            }
+        }
+        return weakest;
+    }
+
+    private static boolean occupied(GameState state, int x, int y)
+    {
+        for (GameUnit unit : state.getEntities()) {
+            if (unit.getX() == x && unit.getY() == y) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of steps from every square to a target square around
+     * the obstacles, by breadth first search, computing it only the first
+     * time the target is asked for. Unreachable squares are Integer.MAX_VALUE.
+     */
+    private int[] distancesTo(int targetX, int targetY, int xExtent, int yExtent)
+    {
+        int target = targetY * xExtent + targetX;
+        int[] distances = distanceMaps.get(target);
+        if (distances != null) {
+            return distances;
+        }
+        distances = new int[xExtent * yExtent];
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        distances[target] = 0;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(target);
+        while (!queue.isEmpty()) {
+            int cell = queue.poll();
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            int[][] neighbours = { { x, y - 1 }, { x + 1, y }, { x, y + 1 }, { x - 1, y } };
+            for (int[] neighbour : neighbours) {
+                int next = neighbour[1] * xExtent + neighbour[0];
+                if (neighbour[0] >= 0 && neighbour[1] >= 0 && neighbour[0] < xExtent && neighbour[1] < yExtent
+                        && distances[next] == Integer.MAX_VALUE && (blocked == null || !blocked[next])) {
+                    distances[next] = distances[cell] + 1;
+                    queue.add(next);
+                }
+            }
+        }
+        distanceMaps.put(target, distances);
+        return distances;
+    }
+
+    private static boolean isOver(GameState state)
+    {
+        return !hasLivingUnit(state.footmen) || !hasLivingUnit(state.archers);
+    }
+
+    private static boolean hasLivingUnit(List<GameUnit> units)
+    {
+        for (GameUnit unit : units) {
+            if (unit.getHP() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A state in one tree, with the rewards of the rollouts played through it.
+     * Trees grow to many thousands of nodes, so a node only keeps its state
+     * packed and grow() unpacks it against the root when the node is visited.
+     */
+    private static final class Node {
+
+        final Node parent;
+        //The joint action that led here from the parent, null at the root
+        final Map<Integer, Action> action;
+        final PackedGameState state;
+        //Joint actions not yet expanded, null until the node is first expanded
+        List<Map<Integer, Action>> untried;
+        final List<Node> children = new ArrayList<>();
+        int visits;
+        double footmenReward;
+
+        Node(Node parent, Map<Integer, Action> action, PackedGameState state) {
+            this.parent = parent;
+            this.action = action;
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.List;
+import java.util.Map;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionType;
+import edu.cwru.sepia.action.DirectedAction;
+import edu.cwru.sepia.action.TargetedAction;
+
+/**
+ * Orders the children of a state using only their joint actions, so no
+ * child has to be evaluated before it is searched. Children are ranked by
+ *
+ * 1. The number of units attacking. Damage is what moves the utility the
+ * most, and an attack that is possible now may not be next turn.
+ * 2. Killer moves: the last two joint actions that caused a cutoff at the
+ * same depth. Sibling states usually differ only a little, so a joint action
+ * that refuted one of them often refutes the next.
+ * 3. History: how much each unit's action has contributed to cutoffs
+ * anywhere in the tree, summed over the units in the joint action. This
+ * ranks the remaining moves by how often moving that unit that way (or
+ * attacking that target) has been the right idea.
+ *
+ * The tables are shared by every search thread without locking. A lost or
+ * torn update only changes the order children are searched in, never a score.
+ */
+public class MoveOrdering {
+
+	//Deepest ply that keeps killer moves
+	private static final int MAX_PLY = 64;
+	//Unit IDs are folded into this many history rows
+	private static final int UNIT_SLOTS = 64;
+	//History columns: one per direction followed by one per attack target
+	private static final int DIRECTIONS = 8;
+	private static final int ACTION_CODES = DIRECTIONS + UNIT_SLOTS;
+
+	private static final int ATTACK_SCORE = 1 << 24;
+	private static final int FIRST_KILLER_SCORE = 1 << 22;
+	private static final int SECOND_KILLER_SCORE = 1 << 21;
+	//History entries are halved once one reaches this, keeping them below the killers
+	private static final int HISTORY_LIMIT = 1 << 18;
+
+	private final Killers[] killers = new Killers[MAX_PLY];
+	private final int[] history = new int[UNIT_SLOTS * ACTION_CODES];
+
+	public MoveOrdering() {
+		for (int ply = 0; ply < MAX_PLY; ply++) {
+			killers[ply] = new Killers();
+		}
+	}
+
+	/**
+	 * Sorts children from most to least promising. Children that rank the
+	 * same keep their relative order.
+	 * @param children The children to sort in place
+	 * @param depth The depth of the children's parent, or -1 to ignore killer moves
+	 */
+	public void order(List<GameStateChild> children, int depth) {
+		int[] scores = new int[children.size()];
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = score(children.get(i).action, depth);
+		}
+		sort(children, scores);
+	}
+
+	/**
+	 * Sorts joint actions from most to least promising, before any of the
+	 * children they lead to have been created. Joint actions that rank the
+	 * same keep their relative order.
+	 * @param jointActions The joint actions to sort in place
+	 * @param depth The depth of the state they are taken in, or -1 to ignore killer moves
+	 */
+	public void orderActions(List<Map<Integer, Action>> jointActions, int depth) {
+		int[] scores = new int[jointActions.size()];
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = score(jointActions.get(i), depth);
+		}
+		sort(jointActions, scores);
+	}
+
+	/**
+	 * Records that a joint action caused a cutoff
+	 * @param action The joint action
+	 * @param depth The depth of the state the action was taken in
+	 * @param remainingDepth The plies that were left below that state
+	 */
+	public void recordCutoff(Map<Integer, Action> action, int depth, int remainingDepth) {
+		if (depth >= 0 && depth < MAX_PLY && !action.equals(killers[depth].first)) {
+			killers[depth].second = killers[depth].first;
+			killers[depth].first = action;
+		}
+		boolean age = false;
+		for (Action unitAction : action.values()) {
+			int index = historyIndex(unitAction);
+			history[index] += remainingDepth * remainingDepth;
+			age |= history[index] >= HISTORY_LIMIT;
+		}
+		if (age) {
+			ageHistory();
+		}
+	}
+
+	/**
+	 * Prepares for the search of a new turn. The killers are forgotten since
+	 * the depths they were found at now belong to a different position, and
+	 * the history is aged so recent cutoffs count for more.
+	 */
+	public void newTurn() {
+		for (Killers plyKillers : killers) {
+			plyKillers.first = null;
+			plyKillers.second = null;
+		}
+		ageHistory();
+	}
+
+	private int score(Map<Integer, Action> action, int depth) {
+		int score = 0;
+		for (Action unitAction : action.values()) {
+			if (unitAction.getType() == ActionType.COMPOUNDATTACK) {
+				score += ATTACK_SCORE;
+			}
+			score += history[historyIndex(unitAction)];
+		}
+		if (depth >= 0 && depth < MAX_PLY) {
+			if (action.equals(killers[depth].first)) {
+				score += FIRST_KILLER_SCORE;
+			} else if (action.equals(killers[depth].second)) {
+				score += SECOND_KILLER_SCORE;
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Insertion sort by descending score, the lists are short and this avoids
+	 * boxing the scores
+	 */
+	private static <T> void sort(List<T> items, int[] scores) {
+		for (int i = 1; i < scores.length; i++) {
+			int score = scores[i];
+			T item = items.get(i);
+			int j = i - 1;
+			while (j >= 0 && scores[j] < score) {
+				scores[j + 1] = scores[j];
+				items.set(j + 1, items.get(j));
+				j--;
+			}
+			scores[j + 1] = score;
+			items.set(j + 1, item);
+		}
+	}
+
+	private static int historyIndex(Action action) {
+		int code;
+		if (action.getType() == ActionType.COMPOUNDATTACK) {
+			code = DIRECTIONS + Math.floorMod(((TargetedAction) action).getTargetId(), UNIT_SLOTS);
+		} else {
+			code = ((DirectedAction) action).getDirection().ordinal() % DIRECTIONS;
+		}
+		return Math.floorMod(action.getUnitId(), UNIT_SLOTS) * ACTION_CODES + code;
+	}
+
+	private void ageHistory() {
+		for (int i = 0; i < history.length; i++) {
+			history[i] >>= 1;
+		}
+	}
+
+	/**
+	 * The two killer moves of one ply, the most recent first
+	 */
+	private static class Killers {
+		Map<Integer, Action> first;
+		Map<Integer, Action> second;
+	}
+}
@@ -0,0 +1,148 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.DirectedAction;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.util.Direction;
+
+/**
+ * The best joint actions found for the first positions of past episodes,
+ * with the depth they were searched to. A map always starts from the same
+ * position and the units are out of range of each other for the first
+ * turns, so the same positions come up every episode and their deep
+ * searches only need to be done once.
+ *
+ * The book is written as a header followed by one record per position:
+ *
+ * int magic, int number of positions
+ * per position: the PackedGameState, byte depth, byte number of actions
+ * per action: int unit ID, byte kind (0 move, 1 attack), int direction
+ * ordinal or target ID
+ *
+ * which takes about 60 bytes for a position of the two footmen maps.
+ */
+public class OpeningBook {
+
+	private static final int MAGIC = 0x53455042;
+	private static final int MOVE = 0;
+	private static final int ATTACK = 1;
+
+	private final Map<PackedGameState, Entry> entries = new HashMap<>();
+
+	/**
+	 * Looks up a position
+	 * @param position The position to look up
+	 * @param minDepth The fewest plies the position must have been searched to
+	 * @return The best joint action in the position, or null if it is not in
+	 * the book or was searched less deeply
+	 */
+	public synchronized Map<Integer, Action> lookup(PackedGameState position, int minDepth) {
+		Entry entry = entries.get(position);
+		return entry == null || entry.depth < minDepth ? null : entry.actions;
+	}
+
+	/**
+	 * Adds the result of a search to the book, unless the position is already
+	 * in it from a search at least as deep. Joint actions of kinds the book
+	 * cannot write are left out.
+	 * @param position The position searched
+	 * @param depth The plies it was searched to
+	 * @param actions The best joint action found
+	 */
+	public synchronized void record(PackedGameState position, int depth, Map<Integer, Action> actions) {
+		Entry entry = entries.get(position);
+		if (entry != null && entry.depth >= depth) {
+			return;
+		}
+		for (Action action : actions.values()) {
+			if (!(action instanceof DirectedAction) && !(action instanceof TargetedAction)) {
+				return;
+			}
+		}
+		entries.put(position, new Entry(depth, actions));
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Writes the whole book
+	 * @param os Where to write the book, left open
+	 * @throws IOException If writing fails
+	 */
+	public synchronized void write(OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(entries.size());
+		for (Map.Entry<PackedGameState, Entry> entry : entries.entrySet()) {
+			entry.getKey().writeTo(out);
+			out.writeByte(entry.getValue().depth);
+			out.writeByte(entry.getValue().actions.size());
+			for (Action action : entry.getValue().actions.values()) {
+				out.writeInt(action.getUnitId());
+				if (action instanceof DirectedAction) {
+					out.writeByte(MOVE);
+					out.writeInt(((DirectedAction) action).getDirection().ordinal());
+				} else {
+					out.writeByte(ATTACK);
+					out.writeInt(((TargetedAction) action).getTargetId());
+				}
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads a book written by write(), adding its positions to this one
+	 * @param is Where to read the book from, left open
+	 * @throws IOException If reading fails or the stream is not a book
+	 */
+	public synchronized void read(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not an opening book");
+		}
+		int positions = in.readInt();
+		for (int i = 0; i < positions; i++) {
+			PackedGameState position = PackedGameState.readFrom(in);
+			int depth = in.readUnsignedByte();
+			int count = in.readUnsignedByte();
+			Map<Integer, Action> actions = new HashMap<>();
+			for (int j = 0; j < count; j++) {
+				int unitId = in.readInt();
+				int kind = in.readUnsignedByte();
+				int argument = in.readInt();
+				if (kind == MOVE) {
+					if (argument < 0 || argument >= Direction.values().length) {
+						throw new IOException("Unknown direction " + argument);
+					}
+					actions.put(unitId, Action.createPrimitiveMove(unitId, Direction.values()[argument]));
+				} else if (kind == ATTACK) {
+					actions.put(unitId, Action.createCompoundAttack(unitId, argument));
+				} else {
+					throw new IOException("Unknown action kind " + kind);
+				}
+			}
+			record(position, depth, actions);
+		}
+	}
+
+	private static class Entry {
+		final int depth;
+		final Map<Integer, Action> actions;
+
+		Entry(int depth, Map<Integer, Action> actions) {
+			this.depth = depth;
+			this.actions = actions;
+		}
+	}
+}
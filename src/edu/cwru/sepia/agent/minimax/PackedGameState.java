@@ -0,0 +1,281 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionType;
+import edu.cwru.sepia.action.DirectedAction;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.util.Direction;
+
+/**
+ * A compact, immutable copy of the parts of a GameState that change during
+ * a game: the position and HP of every unit and which side is to move. The
+ * map size and obstacles never change, so they are left to the GameState the
+ * packed state is unpacked against.
+ *
+ * The first word holds the number of footmen and archers and the side to
+ * move. Every unit after it is packed into one long, footmen first:
+ *
+ * bits 48-63: unit ID
+ * bits 36-47: x
+ * bits 24-35: y
+ * bits 8-23: HP, signed since a unit's HP can go negative during search
+ * bits 0-7: damage
+ *
+ * so a state with four units takes five longs. Copying, hashing and
+ * comparing a packed state only touches that array, which makes it cheap to
+ * keep many of them around: minimax uses them as table keys, and
+ * MonteCarloTreeSearch keeps its tree nodes packed. GameUnit objects are only
+ * created again by toGameState() when a tree node is expanded or played out.
+ */
+public final class PackedGameState {
+
+	private static final int ID_SHIFT = 48;
+	private static final int X_SHIFT = 36;
+	private static final int Y_SHIFT = 24;
+	private static final int HP_SHIFT = 8;
+	private static final long COORDINATE_MASK = 0xFFF;
+	private static final long HP_MASK = 0xFFFF;
+	private static final long DAMAGE_MASK = 0xFF;
+	private static final long MIN_PLAYER_TO_MOVE = 1L << 32;
+
+	private final long[] words;
+	private final int hash;
+
+	private PackedGameState(long[] words) {
+		this.words = words;
+		this.hash = Arrays.hashCode(words);
+	}
+
+	/**
+	 * Packs the units and side to move of a state
+	 * @param state The state to pack
+	 * @return The packed state
+	 */
+	public static PackedGameState of(GameState state) {
+		long[] words = new long[1 + state.footmen.size() + state.archers.size()];
+		words[0] = state.footmen.size() | (state.archers.size() << 16)
+				| (state.isMax() ? 0 : MIN_PLAYER_TO_MOVE);
+		int i = 1;
+		for (GameUnit unit : state.footmen) {
+			words[i++] = pack(unit.getID(), unit.getX(), unit.getY(), unit.getHP(), unit.getDamage());
+		}
+		for (GameUnit unit : state.archers) {
+			words[i++] = pack(unit.getID(), unit.getX(), unit.getY(), unit.getHP(), unit.getDamage());
+		}
+		return new PackedGameState(words);
+	}
+
+	/**
+	 * Creates a full GameState from this packed state
+	 * @param template Any state of the same game, which supplies the map size and obstacles
+	 * @return A new GameState with fresh units at this state's positions and HP
+	 */
+	public GameState toGameState(GameState template) {
+		List<GameUnit> footmen = new ArrayList<>(getFootmanCount());
+		List<GameUnit> archers = new ArrayList<>(getArcherCount());
+		for (int i = 1; i < words.length; i++) {
+			long word = words[i];
+			GameUnit unit = new GameUnit(idOf(word), xOf(word), yOf(word), hpOf(word), damageOf(word));
+			if (i <= getFootmanCount()) {
+				footmen.add(unit);
+			} else {
+				archers.add(unit);
+			}
+		}
+		GameState state = new GameState(template, footmen, archers);
+		state.setIsMax(isMax());
+		return state;
+	}
+
+	/**
+	 * Gets the packed state reached by taking a joint action in this state.
+	 * The actions are applied the same way as GameState.applyActions().
+	 * @param actions The action of each unit that acts
+	 * @return The resulting packed state, this state is unchanged
+	 */
+	public PackedGameState apply(Map<Integer, Action> actions) {
+		long[] next = words.clone();
+		for (Action action : actions.values()) {
+			if (action.getType() == ActionType.COMPOUNDATTACK) {
+				int unit = indexOf(next, action.getUnitId());
+				int target = indexOf(next, ((TargetedAction) action).getTargetId());
+				long word = next[target];
+				next[target] = withHP(word, hpOf(word) - damageOf(next[unit]));
+			} else if (action.getType() == ActionType.PRIMITIVEMOVE) {
+				int unit = indexOf(next, action.getUnitId());
+				Direction direction = ((DirectedAction) action).getDirection();
+				long word = next[unit];
+				next[unit] = pack(idOf(word), xOf(word) + direction.xComponent(),
+						yOf(word) + direction.yComponent(), hpOf(word), damageOf(word));
+			}
+		}
+		next[0] ^= MIN_PLAYER_TO_MOVE;
+		return new PackedGameState(next);
+	}
+
+	/**
+	 * Gets the Zobrist key of this state, equal to GameState.getZobristKey()
+	 * of the state it was packed from
+	 * @return The Zobrist key of this state
+	 */
+	public long getZobristKey() {
+		long key = isMax() ? 0 : Zobrist.SIDE_TO_MOVE;
+		for (int i = 1; i < words.length; i++) {
+			long word = words[i];
+			key ^= unitKey(idOf(word), word);
+		}
+		return key;
+	}
+
+	/**
+	 * Gets the canonical key of this state, equal to GameState.getCanonicalKey()
+	 * of the state it was packed from
+	 * @return The canonical key of this state
+	 */
+	public long getCanonicalKey() {
+		int footmen = getFootmanCount();
+		int archers = getArcherCount();
+		if (footmen != 2 || !after(words[1], words[2])) {
+			return getZobristKey();
+		}
+		long key = getZobristKey() ^ swapKeys(words[1], words[2]);
+		if (archers > 1) {
+			key ^= swapKeys(words[3], words[4]);
+		}
+		return key;
+	}
+
+	/**
+	 * Gets whether the first unit stands after the second in canonical
+	 * order, by x and then by y
+	 */
+	private static boolean after(long first, long second) {
+		return xOf(first) != xOf(second) ? xOf(first) > xOf(second) : yOf(first) > yOf(second);
+	}
+
+	/**
+	 * Gets the change in key from giving two units each other's IDs
+	 */
+	private static long swapKeys(long first, long second) {
+		return unitKey(idOf(first), first) ^ unitKey(idOf(second), second)
+				^ unitKey(idOf(second), first) ^ unitKey(idOf(first), second);
+	}
+
+	private static long unitKey(int unitID, long word) {
+		return Zobrist.position(unitID, xOf(word), yOf(word)) ^ Zobrist.health(unitID, hpOf(word));
+	}
+
+	/**
+	 * Checks whether another state has the same units in the same places with
+	 * the same side to move, whatever their HP
+	 * @param other The state to compare with
+	 * @return True if only the HP of the two states can differ
+	 */
+	public boolean samePositions(PackedGameState other) {
+		if (words.length != other.words.length || words[0] != other.words[0]) {
+			return false;
+		}
+		long mask = ~(HP_MASK << HP_SHIFT);
+		for (int i = 1; i < words.length; i++) {
+			if ((words[i] & mask) != (other.words[i] & mask)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes this state as its word count followed by its words
+	 * @param out Where to write the state
+	 * @throws IOException If writing fails
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeByte(words.length);
+		for (long word : words) {
+			out.writeLong(word);
+		}
+	}
+
+	/**
+	 * Reads a state written by writeTo()
+	 * @param in Where to read the state from
+	 * @return The state read
+	 * @throws IOException If reading fails
+	 */
+	public static PackedGameState readFrom(DataInput in) throws IOException {
+		long[] words = new long[in.readUnsignedByte()];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = in.readLong();
+		}
+		return new PackedGameState(words);
+	}
+
+	public boolean isMax() {
+		return (words[0] & MIN_PLAYER_TO_MOVE) == 0;
+	}
+
+	public int getFootmanCount() {
+		return (int) (words[0] & 0xFFFF);
+	}
+
+	public int getArcherCount() {
+		return (int) ((words[0] >>> 16) & 0xFFFF);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof PackedGameState && hash == ((PackedGameState) other).hash
+				&& Arrays.equals(words, ((PackedGameState) other).words);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	private static long pack(int id, int x, int y, int hp, int damage) {
+		return ((long) (id & 0xFFFF) << ID_SHIFT) | ((x & COORDINATE_MASK) << X_SHIFT)
+				| ((y & COORDINATE_MASK) << Y_SHIFT) | ((hp & HP_MASK) << HP_SHIFT) | (damage & DAMAGE_MASK);
+	}
+
+	private static long withHP(long word, int hp) {
+		return (word & ~(HP_MASK << HP_SHIFT)) | ((hp & HP_MASK) << HP_SHIFT);
+	}
+
+	private static int indexOf(long[] words, int id) {
+		for (int i = 1; i < words.length; i++) {
+			if (idOf(words[i]) == id) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("No unit with ID " + id);
+	}
+
+	private static int idOf(long word) {
+		return (int) ((word >>> ID_SHIFT) & 0xFFFF);
+	}
+
+	private static int xOf(long word) {
+		return (int) ((word >>> X_SHIFT) & COORDINATE_MASK);
+	}
+
+	private static int yOf(long word) {
+		return (int) ((word >>> Y_SHIFT) & COORDINATE_MASK);
+	}
+
+	private static int hpOf(long word) {
+		return (short) (word >>> HP_SHIFT);
+	}
+
+	private static int damageOf(long word) {
+		return (int) (word & DAMAGE_MASK);
+	}
+}
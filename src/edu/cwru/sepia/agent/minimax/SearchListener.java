@@ -0,0 +1,23 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * Receives the search statistics of a MinimaxAlphaBeta agent as the game
+ * goes on. Listeners are called on the agent's thread, between searches, so
+ * they should return quickly.
+ */
+public interface SearchListener {
+
+	/**
+	 * Called once the agent has chosen its move for a turn
+	 * @param turn The turn number, counting from 1 each episode
+	 * @param statistics The statistics of that turn's search
+	 */
+	void turnFinished(int turn, SearchStatistics statistics);
+
+	/**
+	 * Called when an episode ends
+	 * @param turns The number of turns the agent searched this episode
+	 * @param statistics The statistics summed over the episode
+	 */
+	void episodeFinished(int turns, SearchStatistics statistics);
+}
@@ -0,0 +1,374 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing what the search did, for tuning the number of plies
+ * and the move ordering. Every counter is a LongAdder so all search threads
+ * can update the same statistics without contending on them.
+ *
+ * Nodes are the states alphaBetaValue was called on, counted by their depth
+ * below the root. A state is expanded when its joint actions are generated,
+ * and the effective branching factor at a depth is the number of nodes one
+ * ply deeper per expanded node, that is how many children were actually
+ * searched on average rather than how many there were.
+ *
+ * A cutoff is a state whose best child reached the far side of the window.
+ * The index of that child in the searched order shows how good the move
+ * ordering is: ideally almost every cutoff comes from the first child.
+ *
+ * Times are wall clock time summed over threads. Child generation covers
+ * generating joint actions and creating or making the child states, utility
+ * covers computing utilities that were not already cached, and A* covers
+ * every path search on maps with obstacles. Moves and utilities are both
+ * found with A* there, so the A* time is part of the other two.
+ *
+ * Reductions count children searched one ply shallower by late move
+ * reductions, re-searches the ones of those searched again at full depth,
+ * and futility prunes the children skipped by futility pruning. Symmetry
+ * prunes count the children skipped as mirror images of earlier siblings.
+ *
+ * Evaluation cache probes count the utilities looked up in the
+ * EvaluationCache, and hits the ones found there, which are not counted as
+ * evaluations.
+ */
+public class SearchStatistics implements SearchStatisticsMBean {
+
+	//Deepest depth counted, deeper states are counted at this depth
+	private static final int MAX_DEPTH = 64;
+	//Cutoffs at this child index or later share the last counter
+	private static final int CHILD_INDEXES = 16;
+
+	private final LongAdder[] nodes = counters(MAX_DEPTH + 1);
+	private final LongAdder[] expanded = counters(MAX_DEPTH + 1);
+	private final LongAdder[] cutoffs = counters(CHILD_INDEXES);
+	private final LongAdder evaluations = new LongAdder();
+	private final LongAdder childGenerationNanos = new LongAdder();
+	private final LongAdder utilityNanos = new LongAdder();
+	private final LongAdder astarNanos = new LongAdder();
+	private final LongAdder tableProbes = new LongAdder();
+	private final LongAdder tableHits = new LongAdder();
+	private final LongAdder reductions = new LongAdder();
+	private final LongAdder reSearches = new LongAdder();
+	private final LongAdder futilityPrunes = new LongAdder();
+	private final LongAdder symmetryPrunes = new LongAdder();
+	private final LongAdder evaluationCacheProbes = new LongAdder();
+	private final LongAdder evaluationCacheHits = new LongAdder();
+
+	/**
+	 * Counts a state the search has reached
+	 * @param depth The depth of the state below the root
+	 */
+	public void recordNode(int depth) {
+		nodes[clampDepth(depth)].increment();
+	}
+
+	/**
+	 * Counts a state whose joint actions were generated
+	 * @param depth The depth of the state below the root
+	 */
+	public void recordExpansion(int depth) {
+		expanded[clampDepth(depth)].increment();
+	}
+
+	/**
+	 * Counts a cutoff
+	 * @param childIndex The position of the refuting child in the order the children were searched
+	 */
+	public void recordCutoff(int childIndex) {
+		cutoffs[Math.max(0, Math.min(childIndex, CHILD_INDEXES - 1))].increment();
+	}
+
+	public void recordChildGeneration(long nanos) {
+		childGenerationNanos.add(nanos);
+	}
+
+	public void recordUtility(long nanos) {
+		evaluations.increment();
+		utilityNanos.add(nanos);
+	}
+
+	public void recordAstar(long nanos) {
+		astarNanos.add(nanos);
+	}
+
+	/**
+	 * Counts a transposition table lookup
+	 * @param hit True if the state was in the table
+	 */
+	public void recordTableProbe(boolean hit) {
+		tableProbes.increment();
+		if (hit) {
+			tableHits.increment();
+		}
+	}
+
+	/**
+	 * Counts a child searched at reduced depth by late move reductions
+	 * @param reSearched True if it then had to be searched at full depth
+	 */
+	public void recordReduction(boolean reSearched) {
+		reductions.increment();
+		if (reSearched) {
+			reSearches.increment();
+		}
+	}
+
+	public void recordFutilityPrune() {
+		futilityPrunes.increment();
+	}
+
+	public void recordSymmetryPrune() {
+		symmetryPrunes.increment();
+	}
+
+	/**
+	 * Counts an evaluation cache lookup
+	 * @param hit True if the state's utility was in the cache
+	 */
+	public void recordEvaluationCacheProbe(boolean hit) {
+		evaluationCacheProbes.increment();
+		if (hit) {
+			evaluationCacheHits.increment();
+		}
+	}
+
+	/**
+	 * Adds every counter of another set of statistics to this one
+	 * @param other The statistics to add
+	 */
+	public void add(SearchStatistics other) {
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i].add(other.nodes[i].sum());
+			expanded[i].add(other.expanded[i].sum());
+		}
+		for (int i = 0; i < cutoffs.length; i++) {
+			cutoffs[i].add(other.cutoffs[i].sum());
+		}
+		evaluations.add(other.evaluations.sum());
+		childGenerationNanos.add(other.childGenerationNanos.sum());
+		utilityNanos.add(other.utilityNanos.sum());
+		astarNanos.add(other.astarNanos.sum());
+		tableProbes.add(other.tableProbes.sum());
+		tableHits.add(other.tableHits.sum());
+		reductions.add(other.reductions.sum());
+		reSearches.add(other.reSearches.sum());
+		futilityPrunes.add(other.futilityPrunes.sum());
+		symmetryPrunes.add(other.symmetryPrunes.sum());
+		evaluationCacheProbes.add(other.evaluationCacheProbes.sum());
+		evaluationCacheHits.add(other.evaluationCacheHits.sum());
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i].reset();
+			expanded[i].reset();
+		}
+		for (LongAdder cutoff : cutoffs) {
+			cutoff.reset();
+		}
+		evaluations.reset();
+		childGenerationNanos.reset();
+		utilityNanos.reset();
+		astarNanos.reset();
+		tableProbes.reset();
+		tableHits.reset();
+		reductions.reset();
+		reSearches.reset();
+		futilityPrunes.reset();
+		symmetryPrunes.reset();
+		evaluationCacheProbes.reset();
+		evaluationCacheHits.reset();
+	}
+
+	@Override
+	public long getNodes() {
+		long total = 0;
+		for (LongAdder depthNodes : nodes) {
+			total += depthNodes.sum();
+		}
+		return total;
+	}
+
+	/**
+	 * @return The nodes at each depth, up to the deepest depth reached
+	 */
+	@Override
+	public long[] getNodesByDepth() {
+		long[] byDepth = sums(nodes);
+		int depths = byDepth.length;
+		while (depths > 0 && byDepth[depths - 1] == 0) {
+			depths--;
+		}
+		long[] reached = new long[depths];
+		System.arraycopy(byDepth, 0, reached, 0, depths);
+		return reached;
+	}
+
+	/**
+	 * @return The effective branching factor at each depth that expanded a node
+	 */
+	@Override
+	public double[] getEffectiveBranchingFactors() {
+		long[] byDepth = sums(nodes);
+		long[] expandedByDepth = sums(expanded);
+		int depths = 0;
+		while (depths < MAX_DEPTH && expandedByDepth[depths] > 0) {
+			depths++;
+		}
+		double[] factors = new double[depths];
+		for (int i = 0; i < depths; i++) {
+			factors[i] = (double) byDepth[i + 1] / expandedByDepth[i];
+		}
+		return factors;
+	}
+
+	@Override
+	public long getCutoffs() {
+		long total = 0;
+		for (LongAdder cutoff : cutoffs) {
+			total += cutoff.sum();
+		}
+		return total;
+	}
+
+	/**
+	 * @return The cutoffs by the index of the refuting child, the last entry counting every later index
+	 */
+	@Override
+	public long[] getCutoffsByChildIndex() {
+		return sums(cutoffs);
+	}
+
+	@Override
+	public double getFirstChildCutoffRate() {
+		long total = getCutoffs();
+		return total == 0 ? 0 : (double) cutoffs[0].sum() / total;
+	}
+
+	@Override
+	public long getEvaluations() {
+		return evaluations.sum();
+	}
+
+	@Override
+	public double getChildGenerationMillis() {
+		return childGenerationNanos.sum() / 1e6;
+	}
+
+	@Override
+	public double getUtilityMillis() {
+		return utilityNanos.sum() / 1e6;
+	}
+
+	@Override
+	public double getAstarMillis() {
+		return astarNanos.sum() / 1e6;
+	}
+
+	@Override
+	public long getTableProbes() {
+		return tableProbes.sum();
+	}
+
+	@Override
+	public long getTableHits() {
+		return tableHits.sum();
+	}
+
+	@Override
+	public double getTableHitRate() {
+		long probes = tableProbes.sum();
+		return probes == 0 ? 0 : (double) tableHits.sum() / probes;
+	}
+
+	@Override
+	public long getReductions() {
+		return reductions.sum();
+	}
+
+	@Override
+	public long getReSearches() {
+		return reSearches.sum();
+	}
+
+	@Override
+	public long getFutilityPrunes() {
+		return futilityPrunes.sum();
+	}
+
+	@Override
+	public long getSymmetryPrunes() {
+		return symmetryPrunes.sum();
+	}
+
+	@Override
+	public long getEvaluationCacheProbes() {
+		return evaluationCacheProbes.sum();
+	}
+
+	@Override
+	public long getEvaluationCacheHits() {
+		return evaluationCacheHits.sum();
+	}
+
+	@Override
+	public double getEvaluationCacheHitRate() {
+		long probes = evaluationCacheProbes.sum();
+		return probes == 0 ? 0 : (double) evaluationCacheHits.sum() / probes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("nodes=").append(getNodes());
+		builder.append(" cutoffs=").append(getCutoffs());
+		builder.append(String.format(" firstChildCutoffs=%.1f%%", 100 * getFirstChildCutoffRate()));
+		builder.append(" ebf=[");
+		double[] factors = getEffectiveBranchingFactors();
+		for (int i = 0; i < factors.length; i++) {
+			builder.append(i == 0 ? "" : " ").append(String.format("%.2f", factors[i]));
+		}
+		builder.append("]");
+		builder.append(" evaluations=").append(getEvaluations());
+		builder.append(String.format(" children=%.1fms utility=%.1fms astar=%.1fms",
+				getChildGenerationMillis(), getUtilityMillis(), getAstarMillis()));
+		if (getTableProbes() > 0) {
+			builder.append(String.format(" ttHits=%.1f%%", 100 * getTableHitRate()));
+		}
+		if (getReductions() > 0) {
+			builder.append(" reductions=").append(getReductions()).append(" reSearches=").append(getReSearches());
+		}
+		if (getFutilityPrunes() > 0) {
+			builder.append(" futilityPrunes=").append(getFutilityPrunes());
+		}
+		if (getSymmetryPrunes() > 0) {
+			builder.append(" symmetryPrunes=").append(getSymmetryPrunes());
+		}
+		if (getEvaluationCacheProbes() > 0) {
+			builder.append(String.format(" evalCacheHits=%.1f%%", 100 * getEvaluationCacheHitRate()));
+		}
+		return builder.toString();
+	}
+
+	private static int clampDepth(int depth) {
+		return Math.max(0, Math.min(depth, MAX_DEPTH));
+	}
+
+	private static LongAdder[] counters(int count) {
+		LongAdder[] counters = new LongAdder[count];
+		for (int i = 0; i < count; i++) {
+			counters[i] = new LongAdder();
+		}
+		return counters;
+	}
+
+	private static long[] sums(LongAdder[] counters) {
+		long[] sums = new long[counters.length];
+		for (int i = 0; i < counters.length; i++) {
+			sums[i] = counters[i].sum();
+		}
+		return sums;
+	}
+}
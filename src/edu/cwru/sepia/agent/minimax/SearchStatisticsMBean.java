@@ -0,0 +1,49 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * The JMX view of a SearchStatistics, see there for what each value means
+ */
+public interface SearchStatisticsMBean {
+
+	long getNodes();
+
+	long[] getNodesByDepth();
+
+	double[] getEffectiveBranchingFactors();
+
+	long getCutoffs();
+
+	long[] getCutoffsByChildIndex();
+
+	double getFirstChildCutoffRate();
+
+	long getEvaluations();
+
+	double getChildGenerationMillis();
+
+	double getUtilityMillis();
+
+	double getAstarMillis();
+
+	long getTableProbes();
+
+	long getTableHits();
+
+	double getTableHitRate();
+
+	long getReductions();
+
+	long getReSearches();
+
+	long getFutilityPrunes();
+
+	long getSymmetryPrunes();
+
+	long getEvaluationCacheProbes();
+
+	long getEvaluationCacheHits();
+
+	double getEvaluationCacheHitRate();
+
+	void reset();
+}
@@ -0,0 +1,143 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Map;
+
+import edu.cwru.sepia.action.Action;
+
+/**
+ * A fixed size hash table of previously searched game states, indexed by
+ * the state's Zobrist key. Each entry remembers how many plies were searched
+ * below the state, the score that search found, whether that score is exact
+ * or only a bound, and the best joint action so it can be searched first the
+ * next time the state is reached.
+ *
+ * States are indexed by their canonical key, so a state and its mirror image
+ * share an entry. The best move names units by ID and only applies to one
+ * of the two, so it is kept with the Zobrist key of the state it was found
+ * in and only handed back for that state.
+ *
+ * The score, depth and bound of an entry are packed into a single long so an
+ * entry can be read with one array access. A packed entry is never 0, so 0
+ * is used to report a miss.
+ *
+ * Each slot holds one state. A new state always replaces a different one in
+ * its slot, while a state already in the table is only overwritten by a
+ * search at least as deep.
+ *
+ * The table is shared by all search threads without any locking. A slot
+ * stores the key XOR the packed entry rather than the key itself, so if two
+ * threads write the same slot at once and a reader sees the key of one and
+ * the entry of the other, the XOR no longer gives back the key it probed
+ * with and the read is treated as a miss. The best move is kept in an
+ * immutable holder together with its own key for the same reason.
+ */
+public class TranspositionTable {
+
+	//Bound types of a stored score
+	public static final int EXACT = 1;
+	public static final int LOWER_BOUND = 2;
+	public static final int UPPER_BOUND = 3;
+
+	private final long[] checks;
+	private final long[] entries;
+	private final StoredMove[] moves;
+	private final int mask;
+
+	/**
+	 * Creates an empty table
+	 * @param size The requested number of entries, rounded up to a power of two
+	 */
+	public TranspositionTable(int size) {
+		int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		if (size <= 1) {
+			capacity = 1;
+		}
+		checks = new long[capacity];
+		entries = new long[capacity];
+		moves = new StoredMove[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Looks up a state
+	 * @param key The canonical key of the state
+	 * @return The packed entry for the state, or 0 if it is not in the table
+	 */
+	public long probe(long key) {
+		int slot = slot(key);
+		long entry = entries[slot];
+		if (entry != 0 && (checks[slot] ^ entry) == key) {
+			return entry;
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the best joint action stored for a state
+	 * @param key The canonical key of the state
+	 * @param moveKey The Zobrist key of the state
+	 * @return The stored best joint action, or null if the state is not in
+	 * the table or the move was found in its mirror image
+	 */
+	public Map<Integer, Action> getMove(long key, long moveKey) {
+		StoredMove move = moves[slot(key)];
+		if (move != null && move.key == moveKey) {
+			return move.action;
+		}
+		return null;
+	}
+
+	/**
+	 * Records the result of searching a state
+	 * @param key The canonical key of the state
+	 * @param moveKey The Zobrist key of the state, which the move is kept with
+	 * @param depth The number of plies searched below the state
+	 * @param score The score found by the search
+	 * @param bound Whether the score is EXACT, a LOWER_BOUND or an UPPER_BOUND
+	 * @param move The best joint action found, may be null
+	 */
+	public void store(long key, long moveKey, int depth, int score, int bound, Map<Integer, Action> move) {
+		int slot = slot(key);
+		long old = entries[slot];
+		if (old != 0 && (checks[slot] ^ old) == key && depthOf(old) > depth) {
+			return;
+		}
+		long entry = pack(depth, score, bound);
+		checks[slot] = key ^ entry;
+		entries[slot] = entry;
+		moves[slot] = move == null ? null : new StoredMove(moveKey, move);
+	}
+
+	public static int scoreOf(long entry) {
+		return (int) (entry >>> 32);
+	}
+
+	public static int depthOf(long entry) {
+		return (int) ((entry >>> 8) & 0xFFFF);
+	}
+
+	public static int boundOf(long entry) {
+		return (int) (entry & 0xFF);
+	}
+
+	private static long pack(int depth, int score, int bound) {
+		return ((long) score << 32) | ((long) (depth & 0xFFFF) << 8) | (bound & 0xFF);
+	}
+
+	private int slot(long key) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/**
+	 * A best move and the key of the state it was found for
+	 */
+	private static final class StoredMove {
+		private final long key;
+		private final Map<Integer, Action> action;
+
+		StoredMove(long key, Map<Integer, Action> action) {
+			this.key = key;
+			this.action = action;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * Zobrist keys for hashing game states. A state's key is the XOR of one
+ * pseudo-random key per unit position, one per unit HP and one for the side
+ * to move, so applying an action only has to XOR out the old feature key and
+ * XOR in the new one.
+ *
+ * Unit IDs and HP are not bounded by the map (HP can even go negative during
+ * search), so rather than storing a table of random numbers the key for each
+ * feature is generated by running its index through the SplitMix64 finalizer.
+ * This gives the same well mixed, reproducible keys as a random table.
+ */
+public final class Zobrist {
+
+	//Distinguishes the key families so a position key never equals an HP key
+	private static final long POSITION_SALT = 0x5A17E3C4B2D19F01L;
+	private static final long HEALTH_SALT = 0x3C6EF372FE94F82BL;
+
+	//XORed into a state's key when the minimizing player is to move
+	public static final long SIDE_TO_MOVE = mix(0x1F83D9ABFB41BD6BL);
+
+	private Zobrist() {
+	}
+
+	/**
+	 * Gets the key for a unit standing at a location
+	 * @param unitID The ID of the unit
+	 * @param x The x coordinate of the unit
+	 * @param y The y coordinate of the unit
+	 * @return The Zobrist key of the unit at that location
+	 */
+	public static long position(int unitID, int x, int y) {
+		return mix(POSITION_SALT ^ ((long) unitID << 40) ^ ((long) (x & 0xFFFFF) << 20) ^ (y & 0xFFFFF));
+	}
+
+	/**
+	 * Gets the key for a unit having some amount of health
+	 * @param unitID The ID of the unit
+	 * @param hp The current HP of the unit
+	 * @return The Zobrist key of the unit with that HP
+	 */
+	public static long health(int unitID, int hp) {
+		return mix(HEALTH_SALT ^ ((long) unitID << 32) ^ (hp & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * Gets the combined key of a unit's position and HP
+	 * @param unit The unit to hash
+	 * @return The Zobrist key of the unit
+	 */
+	public static long unit(GameUnit unit) {
+		return unit(unit.getID(), unit);
+	}
+
+	/**
+	 * Gets the key a unit would have if it had another ID, used to key a
+	 * state as its canonical mirror image
+	 * @param unitID The ID to key the unit by
+	 * @param unit The unit whose position and HP to hash
+	 * @return The Zobrist key of the unit's position and HP under that ID
+	 */
+	public static long unit(int unitID, GameUnit unit) {
+		return position(unitID, unit.getX(), unit.getY()) ^ health(unitID, unit.getHP());
+	}
+
+	/**
+	 * The SplitMix64 finalizer, a bijective mix of all input bits into all output bits
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}